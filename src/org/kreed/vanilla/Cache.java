@@ -166,6 +166,31 @@ public class Cache<E> {
 		return discarded;
 	}
 
+	/**
+	 * Remove the item with the given key from the cache.
+	 *
+	 * @param key The key of the item to remove.
+	 * @return The removed item, or null if the key was not found.
+	 */
+	@SuppressWarnings("unchecked")
+	public E remove(long key)
+	{
+		if (key < 0)
+			throw new IllegalArgumentException("Keys must be non-negative.");
+
+		int i = indexOf(key);
+		if (i == -1)
+			return null;
+
+		E removed = (E)mValues[i];
+		int count = count();
+		System.arraycopy(mKeys, i + 1, mKeys, i, count - i - 1);
+		System.arraycopy(mValues, i + 1, mValues, i, count - i - 1);
+		mKeys[count - 1] = -1;
+		mValues[count - 1] = null;
+		return removed;
+	}
+
 	/**
 	 * Clear the keys and return the values to be cleared by the caller.
 	 *
@@ -20,6 +20,7 @@ package org.kreed.vanilla;
 
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 import android.app.Activity;
 import android.app.Application;
@@ -28,14 +29,51 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.os.Handler;
-import android.os.Message;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.provider.MediaStore;
 
 /**
  * Subclass of Application that provides various static utility functions
  */
 public class ContextApplication extends Application {
+	/**
+	 * Priority for work the user is waiting on, like commands from the
+	 * controls or rows of a list.
+	 *
+	 * @see ContextApplication#getWorkerLooper(int)
+	 */
+	public static final int PRIORITY_FOREGROUND = 0;
+	/**
+	 * Priority for work that can wait, like loading the library or
+	 * prefetching songs.
+	 *
+	 * @see ContextApplication#getWorkerLooper(int)
+	 */
+	public static final int PRIORITY_BACKGROUND = 1;
+
 	private static ContextApplication mInstance;
+	/**
+	 * The loopers of the worker threads, indexed by priority. Created when
+	 * first needed.
+	 */
+	private static final Looper[] mWorkers = new Looper[2];
+	/**
+	 * The registered PlaybackListeners. Replaced, never modified, so it can
+	 * be read without locking.
+	 */
+	private static volatile ListenerEntry[] mListeners = new ListenerEntry[0];
+	/**
+	 * Lock held while replacing mListeners.
+	 */
+	private static final Object mListenerLock = new Object();
+	/**
+	 * Handler for the thread the widgets are updated on. This is the
+	 * foreground worker, since the background worker may be busy rebuilding
+	 * the library index for some time.
+	 */
+	private static Handler mWidgetHandler;
 	private static ArrayList<Activity> mActivities;
 	private static PlaybackService mService;
 	private static Random mRandom;
@@ -49,24 +87,34 @@ public class ContextApplication extends Application {
 	{
 		ContentResolver resolver = getContext().getContentResolver();
 		
-		ContentObserver observer = 
-			new ContentObserver(
-				new Handler(
-					new Handler.Callback() {
-						public boolean handleMessage(Message arg0) {
-							Song.onMediaStoreContentsChanged();
-							return false;
-						}
-					}
-				)
-			)
-		{};
+		ContentObserver observer = new ContentObserver(new Handler()) {
+			@Override
+			public void onChange(boolean selfChange)
+			{
+				// Once the index is loaded, the caches are updated from the
+				// changes it finds.
+				if (LibraryIndex.get() == null)
+					Song.onMediaStoreContentsChanged();
+				LibraryIndex.load(true);
+			}
+		};
 	
 		resolver.registerContentObserver(
 				MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, 
 				true, 
 				observer
 		);
+
+		LibraryIndex.addCallback(new LibraryIndex.Callback() {
+			public void libraryIndexChanged(LibraryIndex index)
+			{
+				Song.onLibraryIndexChanged(index);
+			}
+		});
+		mWidgetHandler = new Handler(getWorkerLooper(PRIORITY_FOREGROUND));
+		LibraryIndex.openSnapshot(this);
+		LibraryIndex.load(false);
+		LibraryScanner.scanInBackground();
 	}
 	
 	/**
@@ -79,6 +127,29 @@ public class ContextApplication extends Application {
 		return mRandom;
 	}
 
+	/**
+	 * Return the Looper of a worker thread shared by the whole application.
+	 * Work that must be kept off the UI thread should be sent to a Handler
+	 * on one of these rather than to a thread of its own. Since the thread
+	 * is shared, a Handler that is no longer needed should have its messages
+	 * removed; the Looper must not be quit.
+	 *
+	 * @param priority PRIORITY_FOREGROUND or PRIORITY_BACKGROUND.
+	 */
+	public static synchronized Looper getWorkerLooper(int priority)
+	{
+		if (mWorkers[priority] == null) {
+			HandlerThread thread;
+			if (priority == PRIORITY_FOREGROUND)
+				thread = new HandlerThread("Worker");
+			else
+				thread = new HandlerThread("BackgroundWorker", Process.THREAD_PRIORITY_BACKGROUND);
+			thread.start();
+			mWorkers[priority] = thread.getLooper();
+		}
+		return mWorkers[priority];
+	}
+
 	/**
 	 * Provides an easy to access Context instance.
 	 */
@@ -149,28 +220,138 @@ public class ContextApplication extends Application {
 	}
 
 	/**
-	 * Send a broadcast to all PlaybackActivities that have been added with
-	 * addActivity and then with Context.sendBroadcast.
+	 * A PlaybackListener and the Executor its events are delivered on.
+	 */
+	private static final class ListenerEntry {
+		public final PlaybackListener listener;
+		public final Executor executor;
+
+		public ListenerEntry(PlaybackListener listener, Executor executor)
+		{
+			this.listener = listener;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Return an Executor that runs tasks on the thread of the given Handler.
+	 */
+	public static Executor getExecutor(final Handler handler)
+	{
+		return new Executor() {
+			public void execute(Runnable task)
+			{
+				handler.post(task);
+			}
+		};
+	}
+
+	/**
+	 * Register a listener for events from the PlaybackService.
 	 *
-	 * @param intent The intent to be sent as a broadcast
+	 * @param listener The listener.
+	 * @param executor The Executor to deliver events on. Events are
+	 * delivered in the order they were sent if the Executor runs tasks in
+	 * order.
 	 */
-	public static void broadcast(Intent intent)
+	public static void addPlaybackListener(PlaybackListener listener, Executor executor)
 	{
-		OneCellWidget.receive(intent);
-		FourLongWidget.receive(intent);
-		FourSquareWidget.receive(intent);
+		synchronized (mListenerLock) {
+			ListenerEntry[] old = mListeners;
+			ListenerEntry[] listeners = new ListenerEntry[old.length + 1];
+			System.arraycopy(old, 0, listeners, 0, old.length);
+			listeners[old.length] = new ListenerEntry(listener, executor);
+			mListeners = listeners;
+		}
+	}
 
-		ArrayList<Activity> list = mActivities;
-		if (list != null) {
-			for (int i = list.size(); --i != -1; ) {
-				Activity activity = list.get(i);
-				if (activity instanceof PlaybackActivity)
-					((PlaybackActivity)activity).receive(intent);
+	/**
+	 * Unregister a listener registered with addPlaybackListener. Events
+	 * already handed to its Executor may still be delivered.
+	 */
+	public static void removePlaybackListener(PlaybackListener listener)
+	{
+		synchronized (mListenerLock) {
+			ListenerEntry[] old = mListeners;
+			for (int i = old.length; --i != -1; ) {
+				if (old[i].listener == listener) {
+					ListenerEntry[] listeners = new ListenerEntry[old.length - 1];
+					System.arraycopy(old, 0, listeners, 0, i);
+					System.arraycopy(old, i + 1, listeners, i, old.length - i - 1);
+					mListeners = listeners;
+					break;
+				}
 			}
 		}
+	}
+
+	/**
+	 * Deliver PlaybackListener.onServiceInitialized to all listeners.
+	 */
+	public static void dispatchServiceInitialized()
+	{
+		ListenerEntry[] listeners = mListeners;
+		for (int i = 0; i != listeners.length; ++i) {
+			final PlaybackListener listener = listeners[i].listener;
+			listeners[i].executor.execute(new Runnable() {
+				public void run()
+				{
+					listener.onServiceInitialized();
+				}
+			});
+		}
+	}
 
-		if (mInstance != null)
-			mInstance.sendBroadcast(intent);
+	/**
+	 * Deliver PlaybackListener.onStateChanged to all listeners.
+	 */
+	public static void dispatchStateChanged(final int state, final Song song, final int position)
+	{
+		ListenerEntry[] listeners = mListeners;
+		for (int i = 0; i != listeners.length; ++i) {
+			final PlaybackListener listener = listeners[i].listener;
+			listeners[i].executor.execute(new Runnable() {
+				public void run()
+				{
+					listener.onStateChanged(state, song, position);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Deliver PlaybackListener.onSongReplaced to all listeners.
+	 */
+	public static void dispatchSongReplaced(final int delta, final Song song)
+	{
+		ListenerEntry[] listeners = mListeners;
+		for (int i = 0; i != listeners.length; ++i) {
+			final PlaybackListener listener = listeners[i].listener;
+			listeners[i].executor.execute(new Runnable() {
+				public void run()
+				{
+					listener.onSongReplaced(delta, song);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Update all the widgets on the foreground worker thread.
+	 *
+	 * @param song The current song, or the song that is about to replace it.
+	 * @param state The current PlaybackService state, or -1 if unknown.
+	 */
+	public static void updateWidgets(final Song song, final int state)
+	{
+		mWidgetHandler.post(new Runnable() {
+			public void run()
+			{
+				OneCellWidget.update(song, state);
+				FourLongWidget.update(song, state);
+				FourSquareWidget.update(song, state);
+			}
+		});
 	}
 
 	/**
@@ -19,7 +19,6 @@
 package org.kreed.vanilla;
 
 import android.content.Context;
-import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
@@ -99,6 +98,18 @@ public final class CoverView extends View implements Handler.Callback {
 		mHandler = new Handler(looper, this);
 	}
 
+	/**
+	 * Drop pending work. The looper given to setupHandler may be shared, so
+	 * it will outlive this view.
+	 */
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		if (mHandler != null)
+			mHandler.removeCallbacksAndMessages(null);
+	}
+
 	/**
 	 * Query the service for initial song info.
 	 */
@@ -360,24 +371,28 @@ public final class CoverView extends View implements Handler.Callback {
 	}
 
 	/**
-	 * Handle an intent broadcasted by the PlaybackService. This must be called
-	 * to react to song changes in PlaybackService.
+	 * Update the covers after a song in the timeline has been replaced.
+	 * This must be called to react to song changes in PlaybackService.
 	 *
-	 * @param intent The intent that was broadcast
+	 * @see PlaybackListener#onSongReplaced(int, Song)
 	 */
-	public void receive(Intent intent)
+	public void onSongReplaced(int delta, Song song)
 	{
-		String action = intent.getAction();
-		if (PlaybackService.EVENT_REPLACE_SONG.equals(action)) {
-			int i = STORE_SIZE / 2 + intent.getIntExtra("pos", 0);
-			setSong(i, (Song)intent.getParcelableExtra("song"));
-		} else if (PlaybackService.EVENT_CHANGED.equals(action)) {
-			mTimelinePos = intent.getIntExtra("pos", 0);
-			Song currentSong = mSongs[STORE_SIZE / 2];
-			Song playingSong = intent.getParcelableExtra("song");
-			boolean force = currentSong == null || !currentSong.equals(playingSong);
-			querySongs(force);
-		}
+		setSong(STORE_SIZE / 2 + delta, song);
+	}
+
+	/**
+	 * Update the covers after the current song has changed. This must be
+	 * called to react to song changes in PlaybackService.
+	 *
+	 * @see PlaybackListener#onStateChanged(int, Song, int)
+	 */
+	public void onStateChanged(Song song, int position)
+	{
+		mTimelinePos = position;
+		Song currentSong = mSongs[STORE_SIZE / 2];
+		boolean force = currentSong == null || !currentSong.equals(song);
+		querySongs(force);
 	}
 
 	/**
@@ -164,14 +164,12 @@ public class FullPlaybackActivity extends PlaybackActivity implements SeekBar.On
 	}
 
 	@Override
-	public void receive(Intent intent)
+	public void onStateChanged(int state, Song song, int position)
 	{
-		super.receive(intent);
+		super.onStateChanged(state, song, position);
 
-		if (PlaybackService.EVENT_CHANGED.equals(intent.getAction())) {
-			mDuration = ContextApplication.getService().getDuration();
-			mUiHandler.sendEmptyMessage(MSG_UPDATE_PROGRESS);
-		}
+		mDuration = ContextApplication.getService().getDuration();
+		mUiHandler.sendEmptyMessage(MSG_UPDATE_PROGRESS);
 	}
 
 	@Override
@@ -266,7 +264,11 @@ public class FullPlaybackActivity extends PlaybackActivity implements SeekBar.On
 		if (mPaused || mControlsTop.getVisibility() != View.VISIBLE || (mState & PlaybackService.FLAG_PLAYING) == 0)
 			return;
 
-		int position = ContextApplication.getService().getPosition();
+		// Read the position and the duration from the same snapshot, so they
+		// always belong to the same song.
+		PlaybackService.Clock clock = ContextApplication.getService().getClock();
+		int position = clock.getPosition();
+		mDuration = clock.duration;
 
 		if (!mSeekBarTracking)
 			mSeekBar.setProgress(mDuration == 0 ? 0 : (int)(1000 * position / mDuration));
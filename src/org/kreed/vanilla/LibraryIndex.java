@@ -0,0 +1,2049 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * An in-memory copy of the music in the MediaStore, so common lookups are
+ * array reads rather than queries to the content provider.
+ *
+ * Each index is an immutable snapshot stored in a single binary image, which
+ * is also saved to a file so that it may be memory-mapped at the next launch.
+ * The image contains:
+ *
+ * - The song table: columns stored as arrays, one element per song, in the
+ *   order songs are played when an artist or album is chosen (by artist, then
+ *   album, then track).
+ * - The artist table, sorted by artist key, and the album table, sorted by
+ *   album key.
+ * - The order of the songs sorted by title key.
+ * - A string pool holding all the names, paths and collation keys as UTF-8.
+ *
+ * At launch the saved image is mapped, so the index is available immediately,
+ * while the MediaStore is checked in the background for changes. The image
+ * records the highest song id and the latest modification time it has seen,
+ * so only the songs added or modified since then need to be queried, along
+ * with the list of ids to find the songs that were removed. If anything
+ * changed, a new image is built from the previous one and the changed rows
+ * and replaces it. The same happens whenever the MediaStore changes.
+ */
+public final class LibraryIndex {
+	/**
+	 * Name of the file the image is saved to.
+	 */
+	private static final String SNAPSHOT_FILE = "library";
+	/**
+	 * Header of the image to help indicate if it is in the right format.
+	 */
+	private static final long SNAPSHOT_MAGIC = 0x3c41f28e6b17L;
+	/**
+	 * Version of the image format. Must be changed whenever the format
+	 * changes.
+	 */
+	private static final int SNAPSHOT_VERSION = 2;
+	/**
+	 * Size of the image header: the magic, the version, the five counts
+	 * that determine the layout and the two watermarks.
+	 */
+	private static final int HEADER_SIZE = 48;
+	/**
+	 * The time to wait after a change to the MediaStore before reloading,
+	 * so a burst of changes results in only one reload.
+	 */
+	private static final int RELOAD_DELAY = 2000;
+
+	private static final String[] PROJECTION = {
+		MediaStore.Audio.Media._ID,
+		MediaStore.Audio.Media.DATA,
+		MediaStore.Audio.Media.TITLE,
+		MediaStore.Audio.Media.ALBUM,
+		MediaStore.Audio.Media.ARTIST,
+		MediaStore.Audio.Media.ALBUM_ID,
+		MediaStore.Audio.Media.ARTIST_ID,
+		MediaStore.Audio.Media.TRACK,
+		MediaStore.Audio.Media.DURATION,
+		MediaStore.Audio.Media.ARTIST_KEY,
+		MediaStore.Audio.Media.ALBUM_KEY,
+		MediaStore.Audio.Media.TITLE_KEY,
+		MediaStore.Audio.Media.DATE_MODIFIED
+	};
+
+	public interface Callback {
+		/**
+		 * Called on a background thread when a new index replaces the current
+		 * one.
+		 *
+		 * @param index The new index.
+		 */
+		public void libraryIndexChanged(LibraryIndex index);
+	}
+
+	/**
+	 * The current index, or null if none has been loaded yet.
+	 */
+	private static volatile LibraryIndex mInstance;
+	/**
+	 * Handler for the thread the index is loaded on.
+	 */
+	private static Handler mHandler;
+	/**
+	 * If true, the next load will query all songs rather than only the
+	 * changes since the current index was built.
+	 */
+	private static boolean mFullReload;
+	/**
+	 * The callbacks to notify when the index is replaced.
+	 */
+	private static final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+	/**
+	 * The offsets of each section in an image.
+	 */
+	private static final class Layout {
+		public final int ids;
+		public final int albumIds;
+		public final int artistIds;
+		public final int idIndex;
+		public final int artistTableIds;
+		public final int albumTableIds;
+		public final int tracks;
+		public final int durations;
+		public final int paths;
+		public final int titles;
+		public final int titleKeys;
+		public final int artists;
+		public final int albums;
+		public final int titleOrder;
+		public final int artistNames;
+		public final int artistKeys;
+		public final int albumNames;
+		public final int albumKeys;
+		public final int albumArtists;
+		public final int stringOffsets;
+		public final int strings;
+		/**
+		 * The total size of the image.
+		 */
+		public final int size;
+
+		public Layout(int songs, int artistCount, int albumCount, int stringCount, int stringBytes)
+		{
+			int pos = HEADER_SIZE;
+			ids = pos;
+			pos += songs * 8;
+			albumIds = pos;
+			pos += songs * 8;
+			artistIds = pos;
+			pos += songs * 8;
+			idIndex = pos;
+			pos += songs * 8;
+			artistTableIds = pos;
+			pos += artistCount * 8;
+			albumTableIds = pos;
+			pos += albumCount * 8;
+			tracks = pos;
+			pos += songs * 4;
+			durations = pos;
+			pos += songs * 4;
+			paths = pos;
+			pos += songs * 4;
+			titles = pos;
+			pos += songs * 4;
+			titleKeys = pos;
+			pos += songs * 4;
+			artists = pos;
+			pos += songs * 4;
+			albums = pos;
+			pos += songs * 4;
+			titleOrder = pos;
+			pos += songs * 4;
+			artistNames = pos;
+			pos += artistCount * 4;
+			artistKeys = pos;
+			pos += artistCount * 4;
+			albumNames = pos;
+			pos += albumCount * 4;
+			albumKeys = pos;
+			pos += albumCount * 4;
+			albumArtists = pos;
+			pos += albumCount * 4;
+			stringOffsets = pos;
+			pos += (stringCount + 1) * 4;
+			strings = pos;
+			pos += stringBytes;
+			size = pos;
+		}
+	}
+
+	/**
+	 * The number of songs in the index.
+	 */
+	private final int mSize;
+	/**
+	 * The number of artists in the artist table.
+	 */
+	private final int mArtistCount;
+	/**
+	 * The number of albums in the album table.
+	 */
+	private final int mAlbumCount;
+	/**
+	 * The highest song id seen when the index was built.
+	 */
+	private final long mMaxId;
+	/**
+	 * The latest DATE_MODIFIED seen when the index was built.
+	 */
+	private final long mMaxModified;
+	/**
+	 * The ids of the songs added or modified since the previous index,
+	 * sorted, or null if the index was built from scratch.
+	 */
+	private long[] mChangedIds;
+	/**
+	 * The ids of the songs removed since the previous index, sorted, or null
+	 * if the index was built from scratch.
+	 */
+	private long[] mRemovedIds;
+
+	private final LongBuffer mIds;
+	private final LongBuffer mAlbumIds;
+	private final LongBuffer mArtistIds;
+	/**
+	 * The song ids, sorted, each shifted into the upper 32 bits with the
+	 * position of the song in the song table in the lower 32 bits. Used to
+	 * find songs by id with a binary search.
+	 */
+	private final LongBuffer mIdIndex;
+	private final IntBuffer mTracks;
+	private final IntBuffer mDurations;
+	private final IntBuffer mPaths;
+	private final IntBuffer mTitles;
+	private final IntBuffer mTitleKeys;
+	/**
+	 * The row of each song's artist in the artist table.
+	 */
+	private final IntBuffer mArtists;
+	/**
+	 * The row of each song's album in the album table.
+	 */
+	private final IntBuffer mAlbums;
+	/**
+	 * The rows of the song table, sorted by title key.
+	 */
+	private final IntBuffer mTitleOrder;
+
+	private final LongBuffer mArtistTableIds;
+	private final IntBuffer mArtistNames;
+	private final IntBuffer mArtistKeys;
+	private final LongBuffer mAlbumTableIds;
+	private final IntBuffer mAlbumNames;
+	private final IntBuffer mAlbumKeys;
+	/**
+	 * The artist name of each album.
+	 */
+	private final IntBuffer mAlbumArtists;
+
+	/**
+	 * The offset of each string in mStrings. String n spans from offset n to
+	 * offset n + 1.
+	 */
+	private final IntBuffer mStringOffsets;
+	/**
+	 * The string pool, in UTF-8. All string columns are codes into the pool,
+	 * or -1 for null.
+	 */
+	private final ByteBuffer mStrings;
+
+	/**
+	 * The artist names, from Song.ARTIST_NAMES, filled in as they are used.
+	 */
+	private final String[] mArtistNameCache;
+	/**
+	 * The album names, from Song.ALBUM_NAMES, filled in as they are used.
+	 */
+	private final String[] mAlbumNameCache;
+
+	/**
+	 * Trigrams of the artist keys, by row of the artist table. Built by
+	 * prepareSearch.
+	 */
+	private TrigramIndex mArtistTrigrams;
+	/**
+	 * Trigrams of the album keys, by row of the album table.
+	 */
+	private TrigramIndex mAlbumTrigrams;
+	/**
+	 * Trigrams of the title keys, by row of the song table.
+	 */
+	private TrigramIndex mTitleTrigrams;
+	/**
+	 * The row in the artist table of the artist of each album (the artist
+	 * of the first song on the album). Built by prepareHierarchy.
+	 */
+	private int[] mAlbumArtistRows;
+	/**
+	 * The albums of each artist, by row of the artist table.
+	 */
+	private Children mArtistAlbums;
+	/**
+	 * The songs of each artist, as positions in title order.
+	 */
+	private Children mArtistSongs;
+	/**
+	 * The songs of each album, as rows of the song table (which are in
+	 * track order).
+	 */
+	private Children mAlbumSongs;
+	/**
+	 * The position in title order of each row of the song table.
+	 */
+	private int[] mTitlePositions;
+	/**
+	 * The artist ids, sorted, each shifted into the upper 32 bits with the
+	 * row of the artist in the lower 32 bits.
+	 */
+	private long[] mArtistIdIndex;
+	/**
+	 * The album ids, sorted, in the same form as mArtistIdIndex.
+	 */
+	private long[] mAlbumIdIndex;
+
+	/**
+	 * The children of each node of one level of the hierarchy, stored as
+	 * slices of one array: the children of node n are items[starts[n]] to
+	 * items[starts[n + 1] - 1], in increasing order.
+	 */
+	private static final class Children {
+		public final int[] starts;
+		public final int[] items;
+
+		/**
+		 * Group the items by parent.
+		 *
+		 * @param parents The parent of each item, or -1 if the item has no
+		 * parent.
+		 * @param count The number of parents.
+		 */
+		public Children(int[] parents, int count)
+		{
+			int[] starts = new int[count + 1];
+			for (int i = parents.length; --i != -1; ) {
+				if (parents[i] != -1)
+					++starts[parents[i] + 1];
+			}
+			for (int i = 0; i != count; ++i)
+				starts[i + 1] += starts[i];
+
+			int[] items = new int[starts[count]];
+			int[] next = new int[count];
+			System.arraycopy(starts, 0, next, 0, count);
+			for (int i = 0; i != parents.length; ++i) {
+				int parent = parents[i];
+				if (parent != -1)
+					items[next[parent]++] = i;
+			}
+
+			this.starts = starts;
+			this.items = items;
+		}
+
+		/**
+		 * Return the children of the nodes from start to end - 1, in
+		 * increasing order.
+		 */
+		public int[] get(int start, int end)
+		{
+			int[] items = this.items;
+			int[] starts = this.starts;
+			int[] result = new int[starts[end] - starts[start]];
+			int size = 0;
+			for (int i = start; i != end; ++i) {
+				int length = starts[i + 1] - starts[i];
+				System.arraycopy(items, starts[i], result, size, length);
+				size += length;
+			}
+			// Children of several nodes must be merged into order.
+			if (end - start > 1)
+				Arrays.sort(result);
+			return result;
+		}
+	}
+
+	/**
+	 * Create an index backed by the given image.
+	 *
+	 * @throws IllegalArgumentException If the image is not valid.
+	 */
+	private LibraryIndex(ByteBuffer image)
+	{
+		if (image.capacity() < HEADER_SIZE || image.getLong(0) != SNAPSHOT_MAGIC || image.getInt(8) != SNAPSHOT_VERSION)
+			throw new IllegalArgumentException("Invalid library image");
+
+		int size = image.getInt(12);
+		int artistCount = image.getInt(16);
+		int albumCount = image.getInt(20);
+		int stringCount = image.getInt(24);
+		int stringBytes = image.getInt(28);
+		Layout layout = new Layout(size, artistCount, albumCount, stringCount, stringBytes);
+		if (image.capacity() < layout.size)
+			throw new IllegalArgumentException("Truncated library image");
+
+		mSize = size;
+		mArtistCount = artistCount;
+		mAlbumCount = albumCount;
+		mMaxId = image.getLong(32);
+		mMaxModified = image.getLong(40);
+
+		mIds = slice(image, layout.ids, size * 8).asLongBuffer();
+		mAlbumIds = slice(image, layout.albumIds, size * 8).asLongBuffer();
+		mArtistIds = slice(image, layout.artistIds, size * 8).asLongBuffer();
+		mIdIndex = slice(image, layout.idIndex, size * 8).asLongBuffer();
+		mTracks = slice(image, layout.tracks, size * 4).asIntBuffer();
+		mDurations = slice(image, layout.durations, size * 4).asIntBuffer();
+		mPaths = slice(image, layout.paths, size * 4).asIntBuffer();
+		mTitles = slice(image, layout.titles, size * 4).asIntBuffer();
+		mTitleKeys = slice(image, layout.titleKeys, size * 4).asIntBuffer();
+		mArtists = slice(image, layout.artists, size * 4).asIntBuffer();
+		mAlbums = slice(image, layout.albums, size * 4).asIntBuffer();
+		mTitleOrder = slice(image, layout.titleOrder, size * 4).asIntBuffer();
+
+		mArtistTableIds = slice(image, layout.artistTableIds, artistCount * 8).asLongBuffer();
+		mArtistNames = slice(image, layout.artistNames, artistCount * 4).asIntBuffer();
+		mArtistKeys = slice(image, layout.artistKeys, artistCount * 4).asIntBuffer();
+		mAlbumTableIds = slice(image, layout.albumTableIds, albumCount * 8).asLongBuffer();
+		mAlbumNames = slice(image, layout.albumNames, albumCount * 4).asIntBuffer();
+		mAlbumKeys = slice(image, layout.albumKeys, albumCount * 4).asIntBuffer();
+		mAlbumArtists = slice(image, layout.albumArtists, albumCount * 4).asIntBuffer();
+
+		mStringOffsets = slice(image, layout.stringOffsets, (stringCount + 1) * 4).asIntBuffer();
+		mStrings = slice(image, layout.strings, stringBytes);
+
+		mArtistNameCache = new String[artistCount];
+		mAlbumNameCache = new String[albumCount];
+	}
+
+	/**
+	 * Return a buffer sharing the given range of the given buffer.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length)
+	{
+		ByteBuffer result = buffer.duplicate();
+		result.limit(offset + length);
+		result.position(offset);
+		return result.slice();
+	}
+
+	/**
+	 * The columns of one song, as read from the MediaStore or from a
+	 * previous index, used to build an image.
+	 */
+	private static final class Row {
+		public long id;
+		public String path;
+		public String title;
+		public String album;
+		public String artist;
+		public long albumId;
+		public long artistId;
+		public int track;
+		public int duration;
+		public String artistKey;
+		public String albumKey;
+		public String titleKey;
+		public long dateModified;
+	}
+
+	/**
+	 * Read the rows of a cursor queried with PROJECTION into the given list.
+	 *
+	 * @param scanner If not null, the tags read by this scanner replace
+	 * those from the MediaStore.
+	 */
+	private static void readRows(Cursor cursor, ArrayList<Row> rows, TagScanner scanner)
+	{
+		while (cursor.moveToNext()) {
+			Row row = new Row();
+			row.id = cursor.getLong(0);
+			row.path = cursor.getString(1);
+			row.title = cursor.getString(2);
+			row.album = cursor.getString(3);
+			row.artist = cursor.getString(4);
+			row.albumId = cursor.getLong(5);
+			row.artistId = cursor.getLong(6);
+			row.track = cursor.getInt(7);
+			row.duration = cursor.getInt(8);
+			row.artistKey = cursor.getString(9);
+			row.albumKey = cursor.getString(10);
+			row.titleKey = cursor.getString(11);
+			row.dateModified = cursor.getLong(12);
+			if (scanner != null)
+				applyTags(row, scanner.getTags(row.path));
+			rows.add(row);
+		}
+	}
+
+	/**
+	 * Replace the fields of the given row with the given tags, where the
+	 * tags have a value.
+	 *
+	 * @param tags The tags. May be null.
+	 */
+	private static void applyTags(Row row, TagReader.Tags tags)
+	{
+		if (tags == null)
+			return;
+
+		if (tags.title != null) {
+			row.title = tags.title;
+			row.titleKey = MediaStore.Audio.keyFor(tags.title);
+		}
+		if (tags.artist != null) {
+			row.artist = tags.artist;
+			row.artistKey = MediaStore.Audio.keyFor(tags.artist);
+		}
+		if (tags.album != null) {
+			row.album = tags.album;
+			row.albumKey = MediaStore.Audio.keyFor(tags.album);
+		}
+		// The MediaStore track includes the disc number, which the tag
+		// reader does not read, so only fill in a missing track.
+		if (row.track == 0)
+			row.track = tags.track;
+	}
+
+	/**
+	 * Add the songs in this index to the given list, except for those with
+	 * the given ids.
+	 *
+	 * @param skip The ids to leave out, sorted.
+	 */
+	private void getRows(long[] skip, ArrayList<Row> rows)
+	{
+		for (int i = 0; i != mSize; ++i) {
+			long id = mIds.get(i);
+			if (Arrays.binarySearch(skip, id) >= 0)
+				continue;
+
+			int artist = mArtists.get(i);
+			int album = mAlbums.get(i);
+
+			Row row = new Row();
+			row.id = id;
+			row.path = decodeString(mPaths.get(i));
+			row.title = decodeString(mTitles.get(i));
+			row.album = decodeString(mAlbumNames.get(album));
+			row.artist = decodeString(mArtistNames.get(artist));
+			row.albumId = mAlbumIds.get(i);
+			row.artistId = mArtistIds.get(i);
+			row.track = mTracks.get(i);
+			row.duration = mDurations.get(i);
+			row.artistKey = decodeString(mArtistKeys.get(artist));
+			row.albumKey = decodeString(mAlbumKeys.get(album));
+			row.titleKey = decodeString(mTitleKeys.get(i));
+			rows.add(row);
+		}
+	}
+
+	/**
+	 * Return whether the given row has the same columns as the song with
+	 * the same id in this index.
+	 */
+	private boolean isSame(Row row)
+	{
+		int i = find(row.id);
+		if (i == -1)
+			return false;
+
+		int artist = mArtists.get(i);
+		int album = mAlbums.get(i);
+		return row.albumId == mAlbumIds.get(i)
+			&& row.artistId == mArtistIds.get(i)
+			&& row.track == mTracks.get(i)
+			&& row.duration == mDurations.get(i)
+			&& equal(row.path, decodeString(mPaths.get(i)))
+			&& equal(row.title, decodeString(mTitles.get(i)))
+			&& equal(row.titleKey, decodeString(mTitleKeys.get(i)))
+			&& equal(row.album, decodeString(mAlbumNames.get(album)))
+			&& equal(row.albumKey, decodeString(mAlbumKeys.get(album)))
+			&& equal(row.artist, decodeString(mArtistNames.get(artist)))
+			&& equal(row.artistKey, decodeString(mArtistKeys.get(artist)));
+	}
+
+	/**
+	 * Return whether the two strings are equal, treating two nulls as equal.
+	 */
+	private static boolean equal(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Compare two collation keys, placing null keys first.
+	 */
+	private static int compareKeys(String a, String b)
+	{
+		if (a == null)
+			return b == null ? 0 : -1;
+		if (b == null)
+			return 1;
+		return a.compareTo(b);
+	}
+
+	/**
+	 * Sorts rows by artist key, album key and track.
+	 */
+	private static final class RowComparator implements Comparator<Row> {
+		public int compare(Row a, Row b)
+		{
+			int result = compareKeys(a.artistKey, b.artistKey);
+			if (result == 0)
+				result = compareKeys(a.albumKey, b.albumKey);
+			if (result == 0)
+				result = a.track < b.track ? -1 : a.track == b.track ? 0 : 1;
+			return result;
+		}
+	}
+
+	/**
+	 * Build an image from the given rows. The rows are sorted in place.
+	 *
+	 * @param maxId The highest song id seen.
+	 * @param maxModified The latest DATE_MODIFIED seen.
+	 */
+	private static ByteBuffer build(final ArrayList<Row> rows, long maxId, long maxModified)
+	{
+		Collections.sort(rows, new RowComparator());
+
+		int count = rows.size();
+		long[] ids = new long[count];
+		long[] albumIds = new long[count];
+		long[] artistIds = new long[count];
+		int[] tracks = new int[count];
+		int[] durations = new int[count];
+		int[] paths = new int[count];
+		int[] titles = new int[count];
+		int[] titleKeys = new int[count];
+		int[] artists = new int[count];
+		int[] albums = new int[count];
+
+		StringDictionary pool = new StringDictionary();
+
+		// The rows are sorted by artist key, so the artists are added to
+		// the artist table in sorted order. The album table must be sorted
+		// afterwards.
+		HashMap<Long, Integer> artistRows = new HashMap<Long, Integer>();
+		ArrayList<Long> artistTableIds = new ArrayList<Long>();
+		ArrayList<Integer> artistNames = new ArrayList<Integer>();
+		ArrayList<Integer> artistKeys = new ArrayList<Integer>();
+		HashMap<Long, Integer> albumRows = new HashMap<Long, Integer>();
+		ArrayList<Long> albumTableIds = new ArrayList<Long>();
+		ArrayList<Integer> albumNames = new ArrayList<Integer>();
+		ArrayList<Integer> albumArtists = new ArrayList<Integer>();
+		final ArrayList<String> albumKeyStrings = new ArrayList<String>();
+
+		for (int n = 0; n != count; ++n) {
+			Row row = rows.get(n);
+			ids[n] = row.id;
+			paths[n] = pool.encode(row.path);
+			titles[n] = pool.encode(row.title);
+			albumIds[n] = row.albumId;
+			artistIds[n] = row.artistId;
+			tracks[n] = row.track;
+			durations[n] = row.duration;
+			titleKeys[n] = pool.encode(row.titleKey);
+
+			Integer artist = artistRows.get(row.artistId);
+			if (artist == null) {
+				artist = artistTableIds.size();
+				artistRows.put(row.artistId, artist);
+				artistTableIds.add(row.artistId);
+				artistNames.add(pool.encode(row.artist));
+				artistKeys.add(pool.encode(row.artistKey));
+			}
+			artists[n] = artist;
+
+			Integer album = albumRows.get(row.albumId);
+			if (album == null) {
+				album = albumTableIds.size();
+				albumRows.put(row.albumId, album);
+				albumTableIds.add(row.albumId);
+				albumNames.add(pool.encode(row.album));
+				albumArtists.add(pool.encode(row.artist));
+				albumKeyStrings.add(row.albumKey);
+			}
+			albums[n] = album;
+		}
+
+		int albumCount = albumTableIds.size();
+		Integer[] albumOrder = new Integer[albumCount];
+		for (int i = 0; i != albumCount; ++i)
+			albumOrder[i] = i;
+		Arrays.sort(albumOrder, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				return compareKeys(albumKeyStrings.get(a), albumKeyStrings.get(b));
+			}
+		});
+		int[] albumRowMap = new int[albumCount];
+		for (int i = 0; i != albumCount; ++i)
+			albumRowMap[albumOrder[i]] = i;
+		for (int i = 0; i != count; ++i)
+			albums[i] = albumRowMap[albums[i]];
+
+		Integer[] titleOrder = new Integer[count];
+		for (int i = 0; i != count; ++i)
+			titleOrder[i] = i;
+		Arrays.sort(titleOrder, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				return compareKeys(rows.get(a).titleKey, rows.get(b).titleKey);
+			}
+		});
+
+		long[] idIndex = new long[count];
+		for (int i = 0; i != count; ++i)
+			idIndex[i] = ids[i] << 32 | i;
+		Arrays.sort(idIndex);
+
+		int[] albumKeys = new int[albumCount];
+		for (int i = 0; i != albumCount; ++i)
+			albumKeys[i] = pool.encode(albumKeyStrings.get(i));
+
+		int stringCount = pool.size();
+		byte[][] strings = new byte[stringCount][];
+		int stringBytes = 0;
+		for (int i = 0; i != stringCount; ++i) {
+			strings[i] = encodeString(pool.decode(i));
+			stringBytes += strings[i].length;
+		}
+
+		int artistCount = artistTableIds.size();
+		Layout layout = new Layout(count, artistCount, albumCount, stringCount, stringBytes);
+		ByteBuffer image = ByteBuffer.allocate(layout.size);
+		image.putLong(0, SNAPSHOT_MAGIC);
+		image.putInt(8, SNAPSHOT_VERSION);
+		image.putInt(12, count);
+		image.putInt(16, artistCount);
+		image.putInt(20, albumCount);
+		image.putInt(24, stringCount);
+		image.putInt(28, stringBytes);
+		image.putLong(32, maxId);
+		image.putLong(40, maxModified);
+
+		for (int i = 0; i != count; ++i) {
+			image.putLong(layout.ids + i * 8, ids[i]);
+			image.putLong(layout.albumIds + i * 8, albumIds[i]);
+			image.putLong(layout.artistIds + i * 8, artistIds[i]);
+			image.putLong(layout.idIndex + i * 8, idIndex[i]);
+			image.putInt(layout.tracks + i * 4, tracks[i]);
+			image.putInt(layout.durations + i * 4, durations[i]);
+			image.putInt(layout.paths + i * 4, paths[i]);
+			image.putInt(layout.titles + i * 4, titles[i]);
+			image.putInt(layout.titleKeys + i * 4, titleKeys[i]);
+			image.putInt(layout.artists + i * 4, artists[i]);
+			image.putInt(layout.albums + i * 4, albums[i]);
+			image.putInt(layout.titleOrder + i * 4, titleOrder[i]);
+		}
+
+		for (int i = 0; i != artistCount; ++i) {
+			image.putLong(layout.artistTableIds + i * 8, artistTableIds.get(i));
+			image.putInt(layout.artistNames + i * 4, artistNames.get(i));
+			image.putInt(layout.artistKeys + i * 4, artistKeys.get(i));
+		}
+
+		for (int i = 0; i != albumCount; ++i) {
+			int row = albumOrder[i];
+			image.putLong(layout.albumTableIds + i * 8, albumTableIds.get(row));
+			image.putInt(layout.albumNames + i * 4, albumNames.get(row));
+			image.putInt(layout.albumKeys + i * 4, albumKeys[row]);
+			image.putInt(layout.albumArtists + i * 4, albumArtists.get(row));
+		}
+
+		int offset = 0;
+		for (int i = 0; i != stringCount; ++i) {
+			image.putInt(layout.stringOffsets + i * 4, offset);
+			slice(image, layout.strings + offset, strings[i].length).put(strings[i]);
+			offset += strings[i].length;
+		}
+		image.putInt(layout.stringOffsets + stringCount * 4, offset);
+
+		return image;
+	}
+
+	/**
+	 * Encode the given string as UTF-8.
+	 */
+	private static byte[] encodeString(String value)
+	{
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Return the string with the given code from the string pool.
+	 *
+	 * @param code The code, or -1.
+	 * @return The string, or null if the code is -1.
+	 */
+	private String decodeString(int code)
+	{
+		if (code == -1)
+			return null;
+
+		int start = mStringOffsets.get(code);
+		byte[] bytes = new byte[mStringOffsets.get(code + 1) - start];
+		ByteBuffer strings = mStrings.duplicate();
+		strings.position(start);
+		strings.get(bytes);
+
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Return the current index, or null if no index has been loaded yet.
+	 */
+	public static LibraryIndex get()
+	{
+		return mInstance;
+	}
+
+	/**
+	 * Add a callback to be notified when the index is replaced.
+	 */
+	public static void addCallback(Callback callback)
+	{
+		synchronized (mCallbacks) {
+			mCallbacks.add(callback);
+		}
+	}
+
+	/**
+	 * Remove a callback added with addCallback.
+	 */
+	public static void removeCallback(Callback callback)
+	{
+		synchronized (mCallbacks) {
+			mCallbacks.remove(callback);
+		}
+	}
+
+	/**
+	 * Make the given index the current index and notify the callbacks.
+	 */
+	private static void install(LibraryIndex index)
+	{
+		mInstance = index;
+
+		Callback[] callbacks;
+		synchronized (mCallbacks) {
+			callbacks = mCallbacks.toArray(new Callback[mCallbacks.size()]);
+		}
+		for (int i = 0; i != callbacks.length; ++i)
+			callbacks[i].libraryIndexChanged(index);
+	}
+
+	/**
+	 * Map the image saved by the last load, if any, and make it the current
+	 * index. This is fast enough to be called on the UI thread at startup;
+	 * the data is read from the file as it is used.
+	 *
+	 * @param context The Context to open the file with.
+	 */
+	public static void openSnapshot(Context context)
+	{
+		File file = new File(context.getFilesDir(), SNAPSHOT_FILE);
+		if (!file.exists())
+			return;
+
+		try {
+			mInstance = new LibraryIndex(map(file));
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to open library snapshot", e);
+		} catch (IllegalArgumentException e) {
+			Log.w("VanillaMusic", "Failed to open library snapshot", e);
+		}
+	}
+
+	/**
+	 * Map the given file into memory, read-only.
+	 */
+	private static ByteBuffer map(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the given image and map the saved file. The file is replaced
+	 * atomically, so mappings of the previous file remain valid.
+	 *
+	 * @return The mapped file.
+	 */
+	private static ByteBuffer save(Context context, ByteBuffer image) throws IOException
+	{
+		File dir = context.getFilesDir();
+		File file = new File(dir, SNAPSHOT_FILE);
+		File temp = new File(dir, SNAPSHOT_FILE + ".tmp");
+
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			ByteBuffer data = image.duplicate();
+			data.clear();
+			FileChannel channel = out.getChannel();
+			while (data.hasRemaining())
+				channel.write(data);
+		} finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(file))
+			throw new IOException("Failed to rename " + temp);
+
+		return map(file);
+	}
+
+	/**
+	 * Load the index from the MediaStore in the background, replacing the
+	 * current index and the saved image when done. Only the changes since
+	 * the current index was built are queried.
+	 *
+	 * @param delayed If true, wait RELOAD_DELAY milliseconds first. Any load
+	 * requested in the meantime is merged with this one.
+	 */
+	public static synchronized void load(boolean delayed)
+	{
+		if (mHandler == null) {
+			Looper looper = ContextApplication.getWorkerLooper(ContextApplication.PRIORITY_BACKGROUND);
+			mHandler = new Handler(looper, new Handler.Callback() {
+				public boolean handleMessage(Message message)
+				{
+					LibraryIndex index = query();
+					if (index != null) {
+						install(index);
+						index.prepareSearch();
+					}
+					return true;
+				}
+			});
+		}
+
+		mHandler.removeMessages(0);
+		mHandler.sendEmptyMessageDelayed(0, delayed ? RELOAD_DELAY : 0);
+	}
+
+	/**
+	 * Load the index from scratch in the background, querying all songs
+	 * rather than only the changes. This must be used when the tags read by
+	 * LibraryScanner have changed.
+	 */
+	public static void reload()
+	{
+		synchronized (LibraryIndex.class) {
+			mFullReload = true;
+		}
+		load(false);
+	}
+
+	/**
+	 * Query the MediaStore and build a new index. If there is a current
+	 * index, only the songs added or modified since it was built are
+	 * queried, along with the ids of all songs to find those removed.
+	 *
+	 * @return The new index, or null if the query failed or nothing has
+	 * changed.
+	 */
+	private static LibraryIndex query()
+	{
+		Context context = ContextApplication.getContext();
+		ContentResolver resolver = context.getContentResolver();
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		String selection = MediaStore.Audio.Media.IS_MUSIC + "!=0";
+
+		TagScanner scanner = LibraryScanner.get();
+		LibraryIndex previous = mInstance;
+		synchronized (LibraryIndex.class) {
+			if (mFullReload) {
+				mFullReload = false;
+				previous = null;
+			}
+		}
+		ArrayList<Row> rows = new ArrayList<Row>();
+		long[] changed = null;
+		long[] removed = null;
+		long maxId = 0;
+		long maxModified = 0;
+
+		if (previous != null) {
+			long[] ids = queryIds(resolver);
+			if (ids == null)
+				return null;
+
+			// Modification times have a resolution of one second, so songs
+			// modified in the same second as the watermark are fetched again.
+			String deltaSelection = selection + " AND (" + MediaStore.Audio.Media._ID + '>' + previous.mMaxId + " OR " + MediaStore.Audio.Media.DATE_MODIFIED + ">=" + previous.mMaxModified + ')';
+			Cursor cursor = resolver.query(media, PROJECTION, deltaSelection, null, null);
+			if (cursor == null)
+				return null;
+			readRows(cursor, rows, scanner);
+			cursor.close();
+
+			// The watermark always matches the latest modified songs, so
+			// leave out the rows that are the same as in the previous index.
+			// They are copied from it below like the other unchanged songs.
+			for (int i = rows.size(); --i != -1; ) {
+				if (previous.isSame(rows.get(i)))
+					rows.remove(i);
+			}
+
+			int count = rows.size();
+			changed = new long[count];
+			int added = 0;
+			for (int i = 0; i != count; ++i) {
+				changed[i] = rows.get(i).id;
+				if (!previous.contains(changed[i]))
+					++added;
+			}
+			Arrays.sort(changed);
+			removed = previous.findRemoved(ids);
+
+			if (previous.mSize - removed.length + added == ids.length) {
+				if (count == 0 && removed.length == 0)
+					return null;
+
+				long[] skip = new long[count + removed.length];
+				System.arraycopy(changed, 0, skip, 0, count);
+				System.arraycopy(removed, 0, skip, count, removed.length);
+				Arrays.sort(skip);
+				previous.getRows(skip, rows);
+
+				maxId = previous.mMaxId;
+				maxModified = previous.mMaxModified;
+			} else {
+				// Some songs were neither in the previous index nor
+				// returned by the delta query (e.g. songs that have just
+				// become music). Fall back to a full query.
+				previous = null;
+				rows.clear();
+				changed = null;
+				removed = null;
+			}
+		}
+
+		if (previous == null) {
+			Cursor cursor = resolver.query(media, PROJECTION, selection, null, null);
+			if (cursor == null)
+				return null;
+			readRows(cursor, rows, scanner);
+			cursor.close();
+		}
+
+		for (int i = rows.size(); --i != -1; ) {
+			Row row = rows.get(i);
+			maxId = Math.max(maxId, row.id);
+			maxModified = Math.max(maxModified, row.dateModified);
+		}
+
+		ByteBuffer image = build(rows, maxId, maxModified);
+		rows = null;
+
+		try {
+			// Use the mapped file rather than the built image so the data
+			// does not stay on the heap.
+			image = save(context, image);
+		} catch (IOException e) {
+			Log.w("VanillaMusic", "Failed to save library snapshot", e);
+		}
+
+		LibraryIndex index = new LibraryIndex(image);
+		index.mChangedIds = changed;
+		index.mRemovedIds = removed;
+		return index;
+	}
+
+	/**
+	 * Query the ids of all the songs in the MediaStore.
+	 *
+	 * @return The ids, sorted, or null if the query failed.
+	 */
+	private static long[] queryIds(ContentResolver resolver)
+	{
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+		String[] projection = { MediaStore.Audio.Media._ID };
+		String selection = MediaStore.Audio.Media.IS_MUSIC + "!=0";
+		Cursor cursor = resolver.query(media, projection, selection, null, MediaStore.Audio.Media._ID);
+		if (cursor == null)
+			return null;
+
+		long[] ids = new long[cursor.getCount()];
+		for (int i = 0; i != ids.length && cursor.moveToNext(); ++i)
+			ids[i] = cursor.getLong(0);
+		cursor.close();
+
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	/**
+	 * Return the ids of the songs in this index that are not in the given
+	 * list.
+	 *
+	 * @param ids The current song ids, sorted.
+	 * @return The missing ids, sorted.
+	 */
+	private long[] findRemoved(long[] ids)
+	{
+		LongBuffer index = mIdIndex;
+		long[] removed = new long[mSize];
+		int count = 0;
+		for (int i = 0, j = 0; i != mSize; ++i) {
+			long id = index.get(i) >>> 32;
+			while (j != ids.length && ids[j] < id)
+				++j;
+			if (j == ids.length || ids[j] != id)
+				removed[count++] = id;
+		}
+
+		long[] result = new long[count];
+		System.arraycopy(removed, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Return the ids of the songs that were added or modified between the
+	 * previous index and this one.
+	 *
+	 * @return The ids, sorted, or null if this index was built from scratch
+	 * and the changes are not known.
+	 */
+	public long[] getChangedIds()
+	{
+		return mChangedIds;
+	}
+
+	/**
+	 * Return the ids of the songs that were removed between the previous
+	 * index and this one.
+	 *
+	 * @return The ids, sorted, or null if this index was built from scratch
+	 * and the changes are not known.
+	 */
+	public long[] getRemovedIds()
+	{
+		return mRemovedIds;
+	}
+
+	/**
+	 * Return the highest song id in the MediaStore when the index was built.
+	 */
+	public long getMaxId()
+	{
+		return mMaxId;
+	}
+
+	/**
+	 * Return the number of songs in the index.
+	 */
+	public int getCount()
+	{
+		return mSize;
+	}
+
+	/**
+	 * Return the position in the song table of the song with the given id,
+	 * or -1 if the song is not in the index.
+	 */
+	private int find(long id)
+	{
+		LongBuffer index = mIdIndex;
+		int low = 0;
+		int high = mSize - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midId = index.get(mid) >>> 32;
+			if (midId < id)
+				low = mid + 1;
+			else if (midId > id)
+				high = mid - 1;
+			else
+				return (int)index.get(mid);
+		}
+		return -1;
+	}
+
+	/**
+	 * Return whether the index contains the song with the given id.
+	 */
+	public boolean contains(long id)
+	{
+		return find(id) != -1;
+	}
+
+	/**
+	 * Return the name of the artist in the given row of the artist table,
+	 * as held by Song.ARTIST_NAMES.
+	 */
+	private String getArtistName(int row)
+	{
+		String name = mArtistNameCache[row];
+		if (name == null) {
+			name = Song.ARTIST_NAMES.intern(decodeString(mArtistNames.get(row)));
+			mArtistNameCache[row] = name;
+		}
+		return name;
+	}
+
+	/**
+	 * Return the name of the album in the given row of the album table, as
+	 * held by Song.ALBUM_NAMES.
+	 */
+	private String getAlbumName(int row)
+	{
+		String name = mAlbumNameCache[row];
+		if (name == null) {
+			name = Song.ALBUM_NAMES.intern(decodeString(mAlbumNames.get(row)));
+			mAlbumNameCache[row] = name;
+		}
+		return name;
+	}
+
+	/**
+	 * Fill the fields of the given song with the data for its id.
+	 *
+	 * @return True if the song was found in the index.
+	 */
+	public boolean fill(Song song)
+	{
+		int i = find(song.id);
+		if (i == -1)
+			return false;
+
+		song.albumId = mAlbumIds.get(i);
+		song.path = decodeString(mPaths.get(i));
+		song.title = decodeString(mTitles.get(i));
+		song.album = getAlbumName(mAlbums.get(i));
+		song.artist = getArtistName(mArtists.get(i));
+		return true;
+	}
+
+	/**
+	 * Return whether the fields {@link #fill(Song)} sets would change the
+	 * given song.
+	 *
+	 * @return True if the song is in the index and any of its fields
+	 * differ, false otherwise.
+	 */
+	public boolean differs(Song song)
+	{
+		int i = find(song.id);
+		if (i == -1)
+			return false;
+
+		return song.albumId != mAlbumIds.get(i)
+			|| !equal(song.path, decodeString(mPaths.get(i)))
+			|| !equal(song.title, decodeString(mTitles.get(i)))
+			|| !equal(song.album, getAlbumName(mAlbums.get(i)))
+			|| !equal(song.artist, getArtistName(mArtists.get(i)));
+	}
+
+	/**
+	 * Return the track number of the song with the given id, or -1 if the
+	 * song is not in the index.
+	 */
+	public int getTrack(long id)
+	{
+		int i = find(id);
+		return i == -1 ? -1 : mTracks.get(i);
+	}
+
+	/**
+	 * Return the duration in milliseconds of the song with the given id, or
+	 * -1 if the song is not in the index.
+	 */
+	public int getDuration(long id)
+	{
+		int i = find(id);
+		return i == -1 ? -1 : mDurations.get(i);
+	}
+
+	/**
+	 * Return the ids of all the songs by the given artist or on the given
+	 * album, in the order they should be played.
+	 *
+	 * @param type MediaUtils.TYPE_ARTIST or MediaUtils.TYPE_ALBUM.
+	 * @param id The MediaStore id of the artist or album.
+	 */
+	public long[] getSongIds(int type, long id)
+	{
+		LongBuffer column;
+		switch (type) {
+		case MediaUtils.TYPE_ARTIST:
+			column = mArtistIds;
+			break;
+		case MediaUtils.TYPE_ALBUM:
+			column = mAlbumIds;
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid type specified: " + type);
+		}
+
+		int count = 0;
+		for (int i = mSize; --i != -1; ) {
+			if (column.get(i) == id)
+				++count;
+		}
+
+		long[] result = new long[count];
+		for (int i = 0, j = 0; j != count; ++i) {
+			if (column.get(i) == id)
+				result[j++] = mIds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Return a cursor over all the artists, albums or songs, in the form
+	 * MediaAdapter queries them from the MediaStore: the first column is the
+	 * id, the second the name (or title) and, for albums and songs, the third
+	 * the artist. Artists are sorted by artist key, albums by album key and
+	 * songs by title key.
+	 *
+	 * @param type MediaUtils.TYPE_ARTIST, TYPE_ALBUM or TYPE_SONG.
+	 */
+	public Cursor getCursor(int type)
+	{
+		return new TableCursor(type, null, null, null);
+	}
+
+	/**
+	 * Return a cursor, in the form returned by getCursor(int), over the
+	 * rows under the given limiter. This does not query
+	 * anything; the rows are taken from the hierarchy built by
+	 * prepareHierarchy.
+	 *
+	 * @param type MediaUtils.TYPE_ARTIST, TYPE_ALBUM or TYPE_SONG.
+	 * @param limiter A limiter as used by MediaAdapter: the artist name,
+	 * optionally followed by the album name. May be null to include all
+	 * rows.
+	 */
+	public Cursor getCursor(int type, String[] limiter)
+	{
+		if (limiter == null)
+			return getCursor(type);
+		return new TableCursor(type, getChildren(type, limiter), null, limiter);
+	}
+
+	/**
+	 * Return the sort key of the row at the given position in the full list
+	 * of the given type.
+	 */
+	private String getKey(int type, int position)
+	{
+		switch (type) {
+		case MediaUtils.TYPE_ARTIST:
+			return decodeString(mArtistKeys.get(position));
+		case MediaUtils.TYPE_ALBUM:
+			return decodeString(mAlbumKeys.get(position));
+		default:
+			return decodeString(mTitleKeys.get(mTitleOrder.get(position)));
+		}
+	}
+
+	/**
+	 * For each of the given keys, find the first row of the given cursor
+	 * whose sort key is not less than the key. This is a binary search over
+	 * the key columns; the cursor is not moved.
+	 *
+	 * @param cursor A cursor returned by this index.
+	 * @param keys The keys, in increasing order.
+	 * @return The position of the row for each key (the count of the cursor
+	 * if there is none), or null if the cursor was not returned by this
+	 * index or its rows are not in key order.
+	 */
+	public int[] getKeyPositions(Cursor cursor, String[] keys)
+	{
+		if (!(cursor instanceof TableCursor))
+			return null;
+		TableCursor table = (TableCursor)cursor;
+		if (table.getIndex() != this)
+			return null;
+		// Songs on an album are in track order.
+		int type = table.mType;
+		if (type == MediaUtils.TYPE_SONG && table.mLimiter != null && table.mLimiter.length > 1)
+			return null;
+
+		int[] rows = table.mRows;
+		int count = table.getCount();
+		int[] positions = new int[keys.length];
+		int low = 0;
+		for (int i = 0; i != keys.length; ++i) {
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int position = rows == null ? mid : rows[mid];
+				if (compareKeys(getKey(type, position), keys[i]) < 0)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			positions[i] = low;
+		}
+		return positions;
+	}
+
+	/**
+	 * Build the trigram indexes used by search, if they have not been built
+	 * yet. This is done automatically by the first search, but may be
+	 * called beforehand so the first search is fast.
+	 */
+	public synchronized void prepareSearch()
+	{
+		prepareHierarchy();
+
+		if (mTitleTrigrams != null)
+			return;
+
+		TrigramIndex artists = new TrigramIndex();
+		for (int i = 0; i != mArtistCount; ++i)
+			addTrigrams(artists, i, mArtistKeys.get(i));
+
+		TrigramIndex albums = new TrigramIndex();
+		for (int i = 0; i != mAlbumCount; ++i)
+			addTrigrams(albums, i, mAlbumKeys.get(i));
+
+		TrigramIndex titles = new TrigramIndex();
+		for (int i = 0; i != mSize; ++i)
+			addTrigrams(titles, i, mTitleKeys.get(i));
+
+		mArtistTrigrams = artists;
+		mAlbumTrigrams = albums;
+		mTitleTrigrams = titles;
+	}
+
+	/**
+	 * Build the artist -> album -> song hierarchy, if it has not been built
+	 * yet, so the children of an artist or album can be listed and limiters
+	 * built without a query. The parent of each song is stored in the image;
+	 * this adds the parent of each album and the children of each artist and
+	 * album.
+	 */
+	public synchronized void prepareHierarchy()
+	{
+		if (mAlbumSongs != null)
+			return;
+
+		int[] albumArtists = new int[mAlbumCount];
+		Arrays.fill(albumArtists, -1);
+		for (int i = 0; i != mSize; ++i) {
+			int album = mAlbums.get(i);
+			if (albumArtists[album] == -1)
+				albumArtists[album] = mArtists.get(i);
+		}
+
+		// Songs are listed in title order, except within an album, where
+		// they are listed in track order like the song table.
+		int[] songArtists = new int[mSize];
+		int[] songAlbums = new int[mSize];
+		int[] titlePositions = new int[mSize];
+		for (int i = 0; i != mSize; ++i) {
+			int row = mTitleOrder.get(i);
+			songArtists[i] = mArtists.get(row);
+			songAlbums[i] = mAlbums.get(i);
+			titlePositions[row] = i;
+		}
+
+		long[] artistIds = new long[mArtistCount];
+		for (int i = 0; i != mArtistCount; ++i)
+			artistIds[i] = mArtistTableIds.get(i) << 32 | i;
+		Arrays.sort(artistIds);
+
+		long[] albumIds = new long[mAlbumCount];
+		for (int i = 0; i != mAlbumCount; ++i)
+			albumIds[i] = mAlbumTableIds.get(i) << 32 | i;
+		Arrays.sort(albumIds);
+
+		mAlbumArtistRows = albumArtists;
+		mArtistAlbums = new Children(albumArtists, mArtistCount);
+		mArtistSongs = new Children(songArtists, mArtistCount);
+		mArtistIdIndex = artistIds;
+		mAlbumIdIndex = albumIds;
+		mTitlePositions = titlePositions;
+		mAlbumSongs = new Children(songAlbums, mAlbumCount);
+	}
+
+	/**
+	 * Return the row with the given id from an index built by
+	 * prepareHierarchy, or -1 if there is no such row.
+	 */
+	private static int findRow(long[] index, long id)
+	{
+		int low = 0;
+		int high = index.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midId = index[mid] >>> 32;
+			if (midId < id)
+				low = mid + 1;
+			else if (midId > id)
+				high = mid - 1;
+			else
+				return (int)index[mid];
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the rows of a table sorted by key whose key is the key of the
+	 * given name. These are always adjacent.
+	 *
+	 * @param keys The key column of the table.
+	 * @param count The number of rows in the table.
+	 * @return The first row and one past the last row. The two are equal if
+	 * no rows match.
+	 */
+	private int[] findRows(IntBuffer keys, int count, String name)
+	{
+		String key = name == null ? null : MediaStore.Audio.keyFor(name);
+
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareKeys(decodeString(keys.get(mid)), key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		int end = low;
+		while (end != count && compareKeys(decodeString(keys.get(end)), key) == 0)
+			++end;
+		return new int[] { low, end };
+	}
+
+	/**
+	 * Return the positions, in display order, of the rows of the given type
+	 * that are children of the given limiter. Songs on an album are in
+	 * track order; everything else is in the order of the full list.
+	 *
+	 * @param type MediaUtils.TYPE_ARTIST, TYPE_ALBUM or TYPE_SONG.
+	 * @param limiter A limiter as used by MediaAdapter: the artist name,
+	 * optionally followed by the album name. The last name that applies to
+	 * the type selects the parent.
+	 */
+	private int[] getChildren(int type, String[] limiter)
+	{
+		prepareHierarchy();
+
+		if (limiter.length == 1 || type == MediaUtils.TYPE_ARTIST) {
+			int[] range = findRows(mArtistKeys, mArtistCount, limiter[0]);
+			switch (type) {
+			case MediaUtils.TYPE_ARTIST:
+				return range(range[0], range[1]);
+			case MediaUtils.TYPE_ALBUM:
+				return mArtistAlbums.get(range[0], range[1]);
+			case MediaUtils.TYPE_SONG:
+				return mArtistSongs.get(range[0], range[1]);
+			}
+		} else {
+			int[] range = findRows(mAlbumKeys, mAlbumCount, limiter[1]);
+			switch (type) {
+			case MediaUtils.TYPE_ALBUM:
+				return range(range[0], range[1]);
+			case MediaUtils.TYPE_SONG: {
+				int[] rows = mAlbumSongs.get(range[0], range[1]);
+				int[] positions = mTitlePositions;
+				for (int i = rows.length; --i != -1; )
+					rows[i] = positions[rows[i]];
+				return rows;
+			}
+			}
+		}
+
+		throw new IllegalArgumentException("Invalid type specified: " + type);
+	}
+
+	/**
+	 * Return an array of the ints from start to end - 1.
+	 */
+	private static int[] range(int start, int end)
+	{
+		int[] result = new int[end - start];
+		for (int i = result.length; --i != -1; )
+			result[i] = start + i;
+		return result;
+	}
+
+	/**
+	 * Return the limiter, as used by MediaAdapter, that selects the children
+	 * of the given artist or album: the artist name, followed by the album
+	 * name for an album.
+	 *
+	 * @param type MediaUtils.TYPE_ARTIST or TYPE_ALBUM.
+	 * @param id The MediaStore id of the artist or album.
+	 * @return The limiter, or null if the artist or album is not in the
+	 * index.
+	 */
+	public String[] getLimiter(int type, long id)
+	{
+		prepareHierarchy();
+
+		switch (type) {
+		case MediaUtils.TYPE_ARTIST: {
+			int row = findRow(mArtistIdIndex, id);
+			if (row == -1)
+				return null;
+			return new String[] { getArtistName(row) };
+		}
+		case MediaUtils.TYPE_ALBUM: {
+			int row = findRow(mAlbumIdIndex, id);
+			if (row == -1)
+				return null;
+			return new String[] { decodeString(mAlbumArtists.get(row)), getAlbumName(row) };
+		}
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Add the trigrams of the string with the given code to the given
+	 * document.
+	 */
+	private void addTrigrams(TrigramIndex index, int document, int code)
+	{
+		if (code != -1)
+			index.add(document, mStrings, mStringOffsets.get(code), mStringOffsets.get(code + 1));
+	}
+
+	/**
+	 * Return true if the string with the given code contains the given
+	 * bytes. (UTF-8 is self-synchronizing, so this is the same as a
+	 * substring test on the decoded strings.)
+	 */
+	private boolean containsBytes(int code, byte[] needle)
+	{
+		if (code == -1)
+			return false;
+
+		ByteBuffer strings = mStrings;
+		int end = mStringOffsets.get(code + 1) - needle.length;
+		for (int i = mStringOffsets.get(code); i <= end; ++i) {
+			int j = 0;
+			while (j != needle.length && strings.get(i + j) == needle[j])
+				++j;
+			if (j == needle.length)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find the rows of a table whose key contains the given bytes.
+	 *
+	 * @param trigrams The trigram index of the keys.
+	 * @param keys The key column of the table.
+	 * @param count The number of rows in the table.
+	 * @return An array with an element for each row, true if the row
+	 * matches.
+	 */
+	private boolean[] match(TrigramIndex trigrams, IntBuffer keys, int count, byte[] needle)
+	{
+		boolean[] matches = new boolean[count];
+		int[] candidates = trigrams.find(needle);
+		if (candidates == null) {
+			for (int i = 0; i != count; ++i)
+				matches[i] = containsBytes(keys.get(i), needle);
+		} else {
+			for (int i = candidates.length; --i != -1; ) {
+				int row = candidates[i];
+				matches[row] = containsBytes(keys.get(row), needle);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Return a cursor, in the form returned by getCursor, over the artists,
+	 * albums or songs whose keys contain all of the given needles. The keys
+	 * searched are those MediaAdapter searches: the artist key for artists,
+	 * the artist and album keys for albums and the artist, album and title
+	 * keys for songs. Each needle must be contained in one of the keys.
+	 *
+	 * If the previous search was a broader version of this one (each of its
+	 * needles is contained in one of the new needles, as happens when the
+	 * user types another character), only the rows it returned are checked.
+	 *
+	 * @param type MediaUtils.TYPE_ARTIST, TYPE_ALBUM or TYPE_SONG.
+	 * @param needles The collation keys to search for.
+	 * @param limiter If not null, only the children of this limiter are
+	 * searched. See getCursor(int, String[]).
+	 * @param previous The cursor returned by the previous search, or null.
+	 * It is only used if it was returned by this index.
+	 */
+	public Cursor search(int type, String[] needles, String[] limiter, Cursor previous)
+	{
+		prepareSearch();
+
+		if (previous instanceof TableCursor) {
+			TableCursor cursor = (TableCursor)previous;
+			if (cursor.getIndex() == this && cursor.mType == type && cursor.mRows != null && cursor.mNeedles != null && Arrays.equals(cursor.mLimiter, limiter) && refines(cursor.mNeedles, needles))
+				return refine(type, needles, cursor.mRows, limiter);
+		}
+
+		// The children of a limiter are few enough to check directly.
+		if (limiter != null)
+			return refine(type, needles, getChildren(type, limiter), limiter);
+
+		int count;
+		switch (type) {
+		case MediaUtils.TYPE_ARTIST:
+			count = mArtistCount;
+			break;
+		case MediaUtils.TYPE_ALBUM:
+			count = mAlbumCount;
+			break;
+		case MediaUtils.TYPE_SONG:
+			count = mSize;
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid type specified: " + type);
+		}
+
+		boolean[] result = new boolean[count];
+		Arrays.fill(result, true);
+
+		for (int n = 0; n != needles.length; ++n) {
+			if (needles[n].length() == 0)
+				continue;
+
+			byte[] needle = encodeString(needles[n]);
+			boolean[] artists = match(mArtistTrigrams, mArtistKeys, mArtistCount, needle);
+
+			switch (type) {
+			case MediaUtils.TYPE_ARTIST:
+				for (int i = 0; i != count; ++i)
+					result[i] &= artists[i];
+				break;
+			case MediaUtils.TYPE_ALBUM: {
+				boolean[] albums = match(mAlbumTrigrams, mAlbumKeys, mAlbumCount, needle);
+				int[] albumArtists = mAlbumArtistRows;
+				for (int i = 0; i != count; ++i)
+					result[i] &= albums[i] || albumArtists[i] != -1 && artists[albumArtists[i]];
+				break;
+			}
+			case MediaUtils.TYPE_SONG: {
+				boolean[] albums = match(mAlbumTrigrams, mAlbumKeys, mAlbumCount, needle);
+				boolean[] titles = match(mTitleTrigrams, mTitleKeys, mSize, needle);
+				IntBuffer songArtists = mArtists;
+				IntBuffer songAlbums = mAlbums;
+				for (int i = 0; i != count; ++i) {
+					if (result[i])
+						result[i] = titles[i] || artists[songArtists.get(i)] || albums[songAlbums.get(i)];
+				}
+				break;
+			}
+			}
+		}
+
+		// Collect the matching rows in display order. Songs are displayed
+		// in title order.
+		int[] rows = new int[count];
+		int size = 0;
+		for (int i = 0; i != count; ++i) {
+			int row = type == MediaUtils.TYPE_SONG ? mTitleOrder.get(i) : i;
+			if (result[row])
+				rows[size++] = i;
+		}
+
+		int[] trimmed = new int[size];
+		System.arraycopy(rows, 0, trimmed, 0, size);
+		return new TableCursor(type, trimmed, needles, null);
+	}
+
+	/**
+	 * Return true if every row matching the new needles must also match the
+	 * old needles: each old needle is contained in one of the new needles.
+	 */
+	private static boolean refines(String[] oldNeedles, String[] newNeedles)
+	{
+		for (int i = oldNeedles.length; --i != -1; ) {
+			String needle = oldNeedles[i];
+			boolean found = needle.length() == 0;
+			for (int j = newNeedles.length; --j != -1 && !found; )
+				found = newNeedles[j].contains(needle);
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Search only the given rows, checking each one directly rather than
+	 * through the trigram indexes.
+	 *
+	 * @param positions The positions, in display order, of the rows to
+	 * check.
+	 * @param limiter The limiter the positions were taken from, if any.
+	 * @see LibraryIndex#search(int, String[], String[], Cursor)
+	 */
+	private Cursor refine(int type, String[] needles, int[] positions, String[] limiter)
+	{
+		int[] rows = positions.clone();
+		int size = rows.length;
+
+		for (int n = 0; n != needles.length && size != 0; ++n) {
+			if (needles[n].length() == 0)
+				continue;
+
+			byte[] needle = encodeString(needles[n]);
+			// The result of checking each artist and album, computed as
+			// needed: 0 if not checked yet, 1 if it matches, 2 if not.
+			byte[] artists = new byte[mArtistCount];
+			byte[] albums = new byte[mAlbumCount];
+
+			int kept = 0;
+			for (int i = 0; i != size; ++i) {
+				int position = rows[i];
+				boolean match;
+				switch (type) {
+				case MediaUtils.TYPE_ARTIST:
+					match = matches(mArtistKeys, position, needle, artists);
+					break;
+				case MediaUtils.TYPE_ALBUM: {
+					int artist = mAlbumArtistRows[position];
+					match = matches(mAlbumKeys, position, needle, albums) || artist != -1 && matches(mArtistKeys, artist, needle, artists);
+					break;
+				}
+				default: {
+					int row = mTitleOrder.get(position);
+					match = containsBytes(mTitleKeys.get(row), needle) || matches(mArtistKeys, mArtists.get(row), needle, artists) || matches(mAlbumKeys, mAlbums.get(row), needle, albums);
+					break;
+				}
+				}
+				if (match)
+					rows[kept++] = position;
+			}
+			size = kept;
+		}
+
+		int[] trimmed = new int[size];
+		System.arraycopy(rows, 0, trimmed, 0, size);
+		return new TableCursor(type, trimmed, needles, limiter);
+	}
+
+	/**
+	 * Return true if the key in the given row contains the given needle,
+	 * using and filling in the given array of results.
+	 */
+	private boolean matches(IntBuffer keys, int row, byte[] needle, byte[] results)
+	{
+		if (results[row] == 0)
+			results[row] = containsBytes(keys.get(row), needle) ? (byte)1 : (byte)2;
+		return results[row] == 1;
+	}
+
+	/**
+	 * A Cursor over one of the tables in the index.
+	 *
+	 * @see LibraryIndex#getCursor(int)
+	 */
+	private final class TableCursor extends AbstractCursor {
+		private final int mType;
+		private final String[] mColumns;
+		/**
+		 * The positions in the table (in display order) of the rows of the
+		 * cursor, or null to include all rows.
+		 */
+		private final int[] mRows;
+		/**
+		 * The needles of the search that produced this cursor, or null if
+		 * it was not produced by a search.
+		 */
+		private final String[] mNeedles;
+		/**
+		 * The limiter the rows were restricted to, or null if none.
+		 */
+		private final String[] mLimiter;
+
+		public TableCursor(int type, int[] rows, String[] needles, String[] limiter)
+		{
+			mType = type;
+			mRows = rows;
+			mNeedles = needles;
+			mLimiter = limiter;
+
+			switch (type) {
+			case MediaUtils.TYPE_ARTIST:
+				mColumns = new String[] { BaseColumns._ID, MediaStore.Audio.Artists.ARTIST };
+				break;
+			case MediaUtils.TYPE_ALBUM:
+				mColumns = new String[] { BaseColumns._ID, MediaStore.Audio.Albums.ALBUM, MediaStore.Audio.Albums.ARTIST };
+				break;
+			case MediaUtils.TYPE_SONG:
+				mColumns = new String[] { BaseColumns._ID, MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.ARTIST };
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid type specified: " + type);
+			}
+		}
+
+		@Override
+		public int getCount()
+		{
+			if (mRows != null)
+				return mRows.length;
+
+			switch (mType) {
+			case MediaUtils.TYPE_ARTIST:
+				return mArtistCount;
+			case MediaUtils.TYPE_ALBUM:
+				return mAlbumCount;
+			default:
+				return mSize;
+			}
+		}
+
+		public String[] getColumnNames()
+		{
+			return mColumns;
+		}
+
+		/**
+		 * Return the index this cursor reads from.
+		 */
+		public LibraryIndex getIndex()
+		{
+			return LibraryIndex.this;
+		}
+
+		/**
+		 * Return the position in the table of the current row.
+		 */
+		private int getRow()
+		{
+			int position = getPosition();
+			return mRows == null ? position : mRows[position];
+		}
+
+		@Override
+		public long getLong(int column)
+		{
+			if (column != 0)
+				return Long.parseLong(getString(column));
+
+			int row = getRow();
+			switch (mType) {
+			case MediaUtils.TYPE_ARTIST:
+				return mArtistTableIds.get(row);
+			case MediaUtils.TYPE_ALBUM:
+				return mAlbumTableIds.get(row);
+			default:
+				return mIds.get(mTitleOrder.get(row));
+			}
+		}
+
+		@Override
+		public String getString(int column)
+		{
+			if (column == 0)
+				return Long.toString(getLong(0));
+
+			int row = getRow();
+			switch (mType) {
+			case MediaUtils.TYPE_ARTIST:
+				return getArtistName(row);
+			case MediaUtils.TYPE_ALBUM:
+				if (column == 1)
+					return getAlbumName(row);
+				return decodeString(mAlbumArtists.get(row));
+			default:
+				row = mTitleOrder.get(row);
+				if (column == 1)
+					return decodeString(mTitles.get(row));
+				return getArtistName(mArtists.get(row));
+			}
+		}
+
+		@Override
+		public int getInt(int column)
+		{
+			return (int)getLong(column);
+		}
+
+		public short getShort(int column)
+		{
+			return (short)getLong(column);
+		}
+
+		public float getFloat(int column)
+		{
+			return getLong(column);
+		}
+
+		public double getDouble(int column)
+		{
+			return getLong(column);
+		}
+
+		@Override
+		public boolean isNull(int column)
+		{
+			return getString(column) == null;
+		}
+	}
+}
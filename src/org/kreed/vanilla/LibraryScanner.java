@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Runs a TagScanner over the directories chosen in the preferences, so the
+ * library does not depend on the tags as parsed by the system media
+ * scanner. The tags found are applied to the library index by path.
+ */
+public final class LibraryScanner {
+	/**
+	 * Name of the cache file.
+	 */
+	private static final String CACHE_FILE = "scan";
+
+	/**
+	 * The scanner used by the application, or null if it has not been
+	 * created yet.
+	 */
+	private static TagScanner mInstance;
+	/**
+	 * True while a background scan is running.
+	 */
+	private static boolean mScanning;
+
+	/**
+	 * Return the directories to scan, from the user's preferences.
+	 *
+	 * @return The directories, or null if none are configured.
+	 */
+	private static File[] getDirectories(Context context)
+	{
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+		String value = settings.getString("scan_directories", "").trim();
+		if (value.length() == 0)
+			return null;
+
+		String[] paths = value.split("\\s*:\\s*");
+		File[] directories = new File[paths.length];
+		for (int i = 0; i != paths.length; ++i)
+			directories[i] = new File(paths[i]);
+		return directories;
+	}
+
+	/**
+	 * Return the scanner used by the application, loading its cache if
+	 * needed. This may read from disk, so it should not be called on the UI
+	 * thread.
+	 *
+	 * @return The scanner, or null if no directories are configured.
+	 */
+	public static synchronized TagScanner get()
+	{
+		Context context = ContextApplication.getContext();
+		if (getDirectories(context) == null)
+			return null;
+
+		if (mInstance == null) {
+			mInstance = new TagScanner(new File(context.getFilesDir(), CACHE_FILE));
+			mInstance.loadCache();
+		}
+		return mInstance;
+	}
+
+	/**
+	 * Scan the configured directories on a background thread, then reload
+	 * the library index if any tags changed. Does nothing if no directories
+	 * are configured or a scan is already running.
+	 */
+	public static void scanInBackground()
+	{
+		final File[] directories = getDirectories(ContextApplication.getContext());
+		if (directories == null)
+			return;
+
+		synchronized (LibraryScanner.class) {
+			if (mScanning)
+				return;
+			mScanning = true;
+		}
+
+		new Thread("LibraryScanner") {
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					TagScanner scanner = get();
+					if (scanner != null) {
+						int threads = Math.min(4, Runtime.getRuntime().availableProcessors() + 1);
+						if (scanner.scan(directories, threads) != 0) {
+							try {
+								scanner.saveCache();
+							} catch (IOException e) {
+								Log.w("VanillaMusic", "Failed to save scan cache", e);
+							}
+							LibraryIndex.reload();
+						}
+					}
+				} catch (InterruptedException e) {
+					// Stop scanning
+				} finally {
+					synchronized (LibraryScanner.class) {
+						mScanning = false;
+					}
+				}
+			}
+		}.start();
+	}
+}
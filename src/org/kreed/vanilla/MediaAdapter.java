@@ -32,8 +32,11 @@ import android.graphics.Paint;
 import android.graphics.RadialGradient;
 import android.graphics.Shader;
 import android.net.Uri;
+import android.os.Handler;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
+import android.text.TextPaint;
+import android.text.TextUtils;
 import android.util.TypedValue;
 import android.view.MotionEvent;
 import android.view.View;
@@ -41,6 +44,7 @@ import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.Filter;
 import android.widget.FilterQueryProvider;
+import android.widget.SectionIndexer;
 
 /**
  * MediaAdapter provides an adapter backed by a MediaStore content provider.
@@ -53,7 +57,7 @@ import android.widget.FilterQueryProvider;
  * to a specific group to be displayed, e.g. only songs from a certain artist.
  * See MediaView.getLimiter and setLimiter for details.
  */
-public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
+public class MediaAdapter extends CursorAdapter implements FilterQueryProvider, SectionIndexer {
 	/**
 	 * The type of media represented by this adapter. Must be one of the
 	 * MediaUtils.FIELD_* constants. Determines which content provider to query for
@@ -91,10 +95,51 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	 * display a UI representation of the limiter.
 	 */
 	private String[] mLimiter;
+	/**
+	 * False until load is called. Until then, the adapter is empty and
+	 * changes to the constraint or limiter are only recorded.
+	 */
+	private boolean mLoaded;
+	/**
+	 * The labels of the fast scroll sections. The first section holds
+	 * everything that sorts before A.
+	 */
+	private static final String[] SECTIONS = { "#", "A", "B", "C", "D", "E", "F", "G", "H", "I", "J", "K", "L", "M", "N", "O", "P", "Q", "R", "S", "T", "U", "V", "W", "X", "Y", "Z" };
+	/**
+	 * The collation keys of SECTIONS, from the second section on. Created
+	 * when first needed.
+	 */
+	private static String[] mSectionKeys;
+	/**
+	 * The position of the first row of each section in the current cursor,
+	 * an empty array if the cursor has no sections, or null if they have not
+	 * been found yet.
+	 */
+	private int[] mSectionPositions;
 	/**
 	 * The last constraint used in a call to filter.
 	 */
 	private CharSequence mConstraint;
+	/**
+	 * Incremented each time the constraint or limiter changes. A filter
+	 * operation started with an older value is stale: it is skipped if it
+	 * has not started yet and its results are discarded otherwise.
+	 */
+	private volatile int mFilterGeneration;
+	/**
+	 * The Filter used to query in the background.
+	 */
+	private final QueryFilter mFilter = new QueryFilter();
+	/**
+	 * Handler used to delay filtering.
+	 */
+	private final Handler mFilterHandler = new Handler();
+	/**
+	 * The time to wait after the constraint changes before filtering, when
+	 * the content provider must be queried, so a burst of keystrokes results
+	 * in a single query.
+	 */
+	private static final int FILTER_DELAY = 150;
 
 	/**
 	 * Construct a MediaAdapter representing the given <code>type</code> of
@@ -108,6 +153,8 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	 * of the views' text
 	 * @param requery If true, automatically update the adapter when the
 	 * provider backing it changes
+	 *
+	 * The adapter is not queried until load or loadInBackground is called.
 	 */
 	public MediaAdapter(Context context, int type, boolean expandable, boolean requery)
 	{
@@ -143,25 +190,69 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		}
 
 		setFilterQueryProvider(this);
-		requery();
 
 		if (mPaint == null) {
 			Resources res = context.getResources();
 			mExpander = BitmapFactory.decodeResource(res, R.drawable.expander_arrow);
 			mTextSize = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 14, res.getDisplayMetrics());
 
-			mPaint = new Paint();
+			mPaint = new TextPaint();
 			mPaint.setTextSize(mTextSize);
 			mPaint.setAntiAlias(true);
+			mPaint.setColor(Color.WHITE);
+			mAscent = mPaint.ascent();
+
+			mSubTitlePaint = new TextPaint(mPaint);
+			mSubTitlePaint.setColor(Color.GRAY);
+
+			mDashPaint = new Paint();
+			mDashPaint.setColor(Color.GRAY);
+			mDashPaint.setPathEffect(new DashPathEffect(new float[] { 3, 3 }, 0));
+
+			mDividerPaint = new Paint();
 		}
 	}
 
 	/**
-	 * Update the data in the adapter.
+	 * Update the data in the adapter. Does nothing if the adapter has not
+	 * been loaded yet.
 	 */
 	public final void requery()
 	{
-		changeCursor(runQuery(mConstraint));
+		if (mLoaded)
+			changeCursor(runQuery(mConstraint));
+	}
+
+	/**
+	 * Return true if load or loadInBackground has been called.
+	 */
+	public final boolean isLoaded()
+	{
+		return mLoaded;
+	}
+
+	/**
+	 * Query the data for the adapter for the first time, with the
+	 * constraint and limiter set so far. Does nothing if the adapter has
+	 * already been loaded.
+	 */
+	public final void load()
+	{
+		if (!mLoaded) {
+			mLoaded = true;
+			requery();
+		}
+	}
+
+	/**
+	 * Like load, but run the query in the background.
+	 */
+	public final void loadInBackground()
+	{
+		if (!mLoaded) {
+			mLoaded = true;
+			mFilter.filter(mConstraint);
+		}
 	}
 
 	/**
@@ -173,10 +264,160 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	 * @param listener A listener to be called when filtering is complete or
 	 * null.
 	 */
-	public void filter(CharSequence constraint, Filter.FilterListener listener)
+	public void filter(CharSequence constraint, final Filter.FilterListener listener)
 	{
-		mConstraint = constraint;
-		super.getFilter().filter(constraint, listener);
+		// The constraint may be an Editable that changes while we wait, so
+		// take a copy.
+		final String text = constraint == null ? null : constraint.toString();
+		mConstraint = text;
+		++mFilterGeneration;
+
+		mFilterHandler.removeCallbacksAndMessages(null);
+		if (!mLoaded)
+			return;
+		Runnable filter = new Runnable() {
+			public void run()
+			{
+				mFilter.filter(text, listener);
+			}
+		};
+		// Searching the library index is fast enough to do on every
+		// keystroke.
+		if (LibraryIndex.get() != null && canUseIndex())
+			filter.run();
+		else
+			mFilterHandler.postDelayed(filter, FILTER_DELAY);
+	}
+
+	/**
+	 * The result of a query run by QueryFilter.
+	 */
+	private static final class QueryResult {
+		public Cursor cursor;
+		/**
+		 * The value of mFilterGeneration when the query was started.
+		 */
+		public int generation;
+	}
+
+	/**
+	 * Runs queries in the background, dropping those that have become stale.
+	 */
+	private final class QueryFilter extends Filter {
+		@Override
+		protected FilterResults performFiltering(CharSequence constraint)
+		{
+			FilterResults results = new FilterResults();
+			int generation = mFilterGeneration;
+			if (constraint != mConstraint)
+				return results;
+
+			Cursor cursor = runQuery(constraint);
+			if (cursor != null) {
+				if (generation != mFilterGeneration) {
+					cursor.close();
+				} else {
+					QueryResult result = new QueryResult();
+					result.cursor = cursor;
+					result.generation = generation;
+					results.count = cursor.getCount();
+					results.values = result;
+				}
+			}
+			return results;
+		}
+
+		@Override
+		protected void publishResults(CharSequence constraint, FilterResults results)
+		{
+			QueryResult result = (QueryResult)results.values;
+			if (result == null || result.cursor == getCursor())
+				return;
+
+			if (result.generation != mFilterGeneration)
+				result.cursor.close();
+			else
+				changeCursor(result.cursor);
+		}
+	}
+
+	@Override
+	public void changeCursor(Cursor cursor)
+	{
+		mSectionPositions = null;
+		super.changeCursor(cursor);
+	}
+
+	/**
+	 * Return the position of the first row of each section, finding them if
+	 * needed. The positions are found by binary searches of the sorted key
+	 * columns of the library index, so only lists from the index that are
+	 * sorted by key have sections.
+	 *
+	 * @return The positions, or an empty array if the list has no sections.
+	 */
+	private int[] getSectionPositions()
+	{
+		if (mSectionPositions != null)
+			return mSectionPositions;
+
+		if (mFieldKeys == null) {
+			mSectionPositions = new int[0];
+			return mSectionPositions;
+		}
+
+		if (mSectionKeys == null) {
+			String[] keys = new String[SECTIONS.length - 1];
+			for (int i = keys.length; --i != -1; )
+				keys[i] = MediaStore.Audio.keyFor(SECTIONS[i + 1]);
+			mSectionKeys = keys;
+		}
+
+		LibraryIndex index = LibraryIndex.get();
+		int[] found = index == null ? null : index.getKeyPositions(getCursor(), mSectionKeys);
+		int[] positions;
+		if (found == null) {
+			// Labels spread over rows they do not match would mislead, so
+			// show none.
+			positions = new int[0];
+		} else {
+			positions = new int[SECTIONS.length];
+			System.arraycopy(found, 0, positions, 1, found.length);
+		}
+
+		mSectionPositions = positions;
+		return positions;
+	}
+
+	/**
+	 * Return the section labels for the fast scroller. Lists that are not
+	 * sorted by collation key have no sections.
+	 */
+	public Object[] getSections()
+	{
+		if (getSectionPositions().length == 0)
+			return new String[0];
+		return SECTIONS;
+	}
+
+	public int getPositionForSection(int section)
+	{
+		int[] positions = getSectionPositions();
+		if (positions.length == 0 || section < 0)
+			return 0;
+		if (section >= positions.length)
+			section = positions.length - 1;
+		return positions[section];
+	}
+
+	public int getSectionForPosition(int position)
+	{
+		int[] positions = getSectionPositions();
+		if (positions.length == 0)
+			return 0;
+		int section = positions.length;
+		while (--section != 0 && positions[section] > position);
+		return section;
 	}
 
 	/**
@@ -212,6 +453,31 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		return source[source.length - 1];
 	}
 
+	/**
+	 * Return true if queries for this adapter can be answered by the library
+	 * index (if it is loaded).
+	 */
+	private boolean canUseIndex()
+	{
+		return mType != MediaUtils.TYPE_PLAYLIST;
+	}
+
+	/**
+	 * Split the given constraint into the terms to search for. If we are
+	 * using sorting keys, the terms are collation keys. Otherwise, the
+	 * constraint is just split with no modification.
+	 */
+	private String[] splitConstraint(CharSequence constraint)
+	{
+		if (mFieldKeys != null) {
+			String colKey = MediaStore.Audio.keyFor(constraint.toString());
+			String spaceColKey = DatabaseUtils.getCollationKey(" ");
+			return colKey.split(spaceColKey);
+		} else {
+			return constraint.toString().split("\\s+");
+		}
+	}
+
 	/**
 	 * Query the content provider using the given constraint as a filter.
 	 *
@@ -219,6 +485,19 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	 */
 	public Cursor runQuery(CharSequence constraint)
 	{
+		// The lists can be read and searched straight from the library
+		// index, which is available from a snapshot immediately at startup.
+		LibraryIndex index = LibraryIndex.get();
+		if (index != null && canUseIndex()) {
+			// A limiter is resolved through the index's hierarchy, so
+			// expanding an artist or album is just a slice of its children.
+			if (constraint == null || constraint.length() == 0)
+				return index.getCursor(mType, mLimiter);
+			// If this narrows the current search, the index only needs to
+			// check the current results.
+			return index.search(mType, splitConstraint(constraint), mLimiter, getCursor());
+		}
+
 		ContentResolver resolver = ContextApplication.getContext().getContentResolver();
 
 		StringBuilder selection = new StringBuilder();
@@ -241,18 +520,7 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		}
 
 		if (constraint != null && constraint.length() != 0) {
-			String[] needles;
-
-			// If we are using sorting keys, we need to change our constraint
-			// into a list of collation keys. Otherwise, just split the
-			// constraint with no modification.
-			if (mFieldKeys != null) {
-				String colKey = MediaStore.Audio.keyFor(constraint.toString());
-				String spaceColKey = DatabaseUtils.getCollationKey(" ");
-				needles = colKey.split(spaceColKey);
-			} else {
-				needles = constraint.toString().split("\\s+");
-			}
+			String[] needles = splitConstraint(constraint);
 
 			int size = needles.length;
 			if (limiter != null)
@@ -292,7 +560,9 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		else
 			projection = new String[] { BaseColumns._ID, mFields[mFields.length - 1], mFields[0] };
 
-		return resolver.query(mStore, projection, selection.toString(), selectionArgs, getSortOrder());
+		// Only the visible part of the results is held in memory, so huge
+		// lists do not need huge cursor windows.
+		return new PagedCursor(resolver, mStore, projection, selection.toString(), selectionArgs, getSortOrder());
 	}
 
 	/**
@@ -309,8 +579,11 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	public final void setLimiter(String[] limiter, boolean async)
 	{
 		mLimiter = limiter;
+		++mFilterGeneration;
+		if (!mLoaded)
+			return;
 		if (async)
-			super.getFilter().filter(mConstraint);
+			mFilter.filter(mConstraint);
 		else
 			requery();
 	}
@@ -364,22 +637,42 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 	 */
 	static Bitmap mExpander;
 	/**
-	 * The paint object, cached for reuse.
+	 * The paint for the title, shared by all views.
 	 */
-	static Paint mPaint;
-
+	static TextPaint mPaint;
 	/**
-	 * The cached measured view height.
+	 * The paint for the subtitle.
 	 */
-	int mViewHeight = -1;
+	static TextPaint mSubTitlePaint;
+	/**
+	 * The ascent of mPaint and mSubTitlePaint.
+	 */
+	static float mAscent;
+	/**
+	 * The paint for the dashed line that separates the expander arrow and
+	 * the text.
+	 */
+	static Paint mDashPaint;
+	/**
+	 * The paint for the divider that separates each view from other views.
+	 * Its shader is the gradient for views of size mDividerWidth by
+	 * mDividerHeight.
+	 */
+	static Paint mDividerPaint;
 	/**
-	 * The cached dash effect that separates the expander arrow and the text.
+	 * The width of the views the shader of mDividerPaint was created for, or
+	 * 0 if it has not been created.
 	 */
-	DashPathEffect mDashEffect;
+	static int mDividerWidth;
 	/**
-	 * The cached divider gradient that separates each view from other views.
+	 * The height of the views the shader of mDividerPaint was created for.
 	 */
-	RadialGradient mDividerGradient;
+	static int mDividerHeight;
+
+	/**
+	 * The cached measured view height.
+	 */
+	int mViewHeight = -1;
 
 	/**
 	 * Single view that paints one or two text fields and an optional arrow
@@ -390,6 +683,11 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		 * The MediaStore id of the media represented by this view.
 		 */
 		private long mId;
+		/**
+		 * False if the row bound to this view has not been loaded yet (a
+		 * placeholder row of a PagedCursor), in which case mId is not valid.
+		 */
+		private boolean mHasMedia;
 		/**
 		 * The primary text field in the view, displayed on the upper line.
 		 */
@@ -398,6 +696,15 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		 * The secondary text field in the view, displayed on the lower line.
 		 */
 		private String mSubTitle;
+		/**
+		 * mTitle, ellipsized to fit the width of the view, or null if it
+		 * has not been laid out yet.
+		 */
+		private String mTitleText;
+		/**
+		 * mSubTitle, ellipsized to fit the width of the view.
+		 */
+		private String mSubTitleText;
 		/**
 		 * True if the last touch event was over the expander arrow.
 		 */
@@ -447,61 +754,93 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 			setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), mViewHeight);
 		}
 
+		/**
+		 * Return the width available for text in a view of the given width.
+		 */
+		private int getTextWidth(int width)
+		{
+			int padding = mTextSize / 2;
+			if (mExpandable)
+				width -= padding * 4 + mExpander.getWidth();
+			return width - padding * 2;
+		}
+
+		/**
+		 * Ellipsize the given text to fit the given width.
+		 *
+		 * @return The text, or null if text is null.
+		 */
+		private String ellipsize(String text, TextPaint paint, int width)
+		{
+			if (text == null)
+				return null;
+			return TextUtils.ellipsize(text, paint, width, TextUtils.TruncateAt.END).toString();
+		}
+
+		/**
+		 * Fit the title and subtitle to the current width of the view, so
+		 * onDraw does not need to measure anything.
+		 */
+		private void layoutText()
+		{
+			int width = getWidth();
+			if (width == 0) {
+				// Not laid out yet; onSizeChanged will call us again.
+				mTitleText = null;
+				mSubTitleText = null;
+				return;
+			}
+
+			width = getTextWidth(width);
+			mTitleText = ellipsize(mTitle, mPaint, width);
+			mSubTitleText = ellipsize(mSubTitle, mSubTitlePaint, width);
+		}
+
+		@Override
+		protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight)
+		{
+			layoutText();
+		}
+
 		/**
 		 * Draw the view on the given canvas.
 		 */
 		@Override
 		public void onDraw(Canvas canvas)
 		{
-			if (mTitle == null)
+			if (mTitleText == null)
 				return;
 
 			int width = getWidth();
 			int height = getHeight();
 			int padding = mTextSize / 2;
 
-			Paint paint = mPaint;
-
 			if (mExpandable) {
 				Bitmap expander = mExpander;
-				width -= padding * 4 + expander.getWidth();
-
-				if (mDashEffect == null)
-					mDashEffect = new DashPathEffect(new float[] { 3, 3 }, 0);
-
-				paint.setColor(Color.GRAY);
-				paint.setPathEffect(mDashEffect); 
-				canvas.drawLine(width, padding, width, height - padding, paint);
-				paint.setPathEffect(null); 
-				canvas.drawBitmap(expander, width + padding * 2, (height - expander.getHeight()) / 2, paint);
+				int x = width - padding * 4 - expander.getWidth();
+				canvas.drawLine(x, padding, x, height - padding, mDashPaint);
+				canvas.drawBitmap(expander, x + padding * 2, (height - expander.getHeight()) / 2, null);
 			}
 
-			canvas.save();
-			canvas.clipRect(padding, 0, width - padding, height);
-
 			int allocatedHeight;
 
-			if (mSubTitle != null) {
+			if (mSubTitleText != null) {
 				allocatedHeight = height / 2 - padding * 3 / 2;
-
-				paint.setColor(Color.GRAY);
-				canvas.drawText(mSubTitle, padding, height / 2 + padding / 2 + (allocatedHeight - mTextSize) / 2 - paint.ascent(), paint);
+				canvas.drawText(mSubTitleText, padding, height / 2 + padding / 2 + (allocatedHeight - mTextSize) / 2 - mAscent, mSubTitlePaint);
 			} else {
 				allocatedHeight = height - padding * 2;
 			}
 
-			paint.setColor(Color.WHITE);
-			canvas.drawText(mTitle, padding, padding + (allocatedHeight - mTextSize) / 2 - paint.ascent(), paint);
+			canvas.drawText(mTitleText, padding, padding + (allocatedHeight - mTextSize) / 2 - mAscent, mPaint);
 
-			width = getWidth();
-
-			if (mDividerGradient == null)
-				mDividerGradient = new RadialGradient(width / 2, height, width / 2, Color.WHITE, Color.BLACK, Shader.TileMode.CLAMP);
-
-			paint.setShader(mDividerGradient);
-			canvas.restore();
-			canvas.drawLine(0, height, width, height, paint);
-			paint.setShader(null);
+			// All the views in a list have the same size, so one gradient
+			// serves them all.
+			if (mDividerWidth != width || mDividerHeight != height) {
+				mDividerWidth = width;
+				mDividerHeight = height;
+				mDividerPaint.setShader(new RadialGradient(width / 2, height, width / 2, Color.WHITE, Color.BLACK, Shader.TileMode.CLAMP));
+			}
+			canvas.drawLine(0, height, width, height, mDividerPaint);
 		}
 
 		/**
@@ -512,6 +851,15 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 			return mId;
 		}
 
+		/**
+		 * Returns false if the row shown by this view has not been loaded
+		 * yet, so it does not represent any media.
+		 */
+		public final boolean hasMedia()
+		{
+			return mHasMedia;
+		}
+
 		/**
 		 * Returns the type of media contained in the adapter containing this
 		 * view. Will be one of the Song.TYPE_* constants.
@@ -556,10 +904,12 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		 */
 		public final void updateMedia(Cursor cursor)
 		{
+			mHasMedia = !cursor.isNull(0);
 			mId = cursor.getLong(0);
 			mTitle = cursor.getString(1);
 			if (mFields.length > 1)
 				mSubTitle = cursor.getString(2);
+			layoutText();
 			invalidate();
 		}
 
@@ -571,6 +921,13 @@ public class MediaAdapter extends CursorAdapter implements FilterQueryProvider {
 		 */
 		public final String[] getLimiter()
 		{
+			LibraryIndex index = LibraryIndex.get();
+			if (index != null) {
+				String[] limiter = index.getLimiter(mType, mId);
+				if (limiter != null)
+					return limiter;
+			}
+
 			ContentResolver resolver = getContext().getContentResolver();
 			String selection = mFields[mFields.length - 1] + " = ?";
 			String[] selectionArgs = { mTitle };
@@ -56,6 +56,11 @@ public class MediaButtonHandler implements Handler.Callback {
 	 * uninitialized.
 	 */
 	private byte mInCall = -1;
+	/**
+	 * Whether playback was active before the first click of the current
+	 * double click period, so the toggle done for it can be undone.
+	 */
+	private boolean mPlayingBeforeClick;
 
 	/**
 	 * Retrieve the MediaButtonHandler singleton, creating it if necessary.
@@ -134,6 +139,20 @@ public class MediaButtonHandler implements Handler.Callback {
 		context.startService(intent);
 	}
 
+	/**
+	 * Undo the toggle done for the first click of a double click, restoring
+	 * the playback state from before the click.
+	 */
+	private void undoToggle()
+	{
+		// Sent as an action so it is handled after the toggle.
+		Context context = ContextApplication.getContext();
+		Intent intent = new Intent(context, PlaybackService.class);
+		intent.setAction(PlaybackService.ACTION_SET_PLAYING);
+		intent.putExtra("playing", mPlayingBeforeClick);
+		context.startService(intent);
+	}
+
 	/**
 	 * Process a MediaButton broadcast.
 	 *
@@ -156,12 +175,18 @@ public class MediaButtonHandler implements Handler.Callback {
 			// double click: next track
 
 			if (action == KeyEvent.ACTION_DOWN) {
-				if (mHandler.hasMessages(MSG_SINGLE_PRESS_TIMEOUT)) {
+				if (mHandler.hasMessages(MSG_END_DOUBLE_CLICK)) {
 					// double click
-					mHandler.removeMessages(MSG_SINGLE_PRESS_TIMEOUT);
+					mHandler.removeMessages(MSG_END_DOUBLE_CLICK);
+					undoToggle();
 					act(PlaybackService.ACTION_NEXT_SONG_AUTOPLAY);
 				} else {
-					mHandler.sendEmptyMessageDelayed(MSG_SINGLE_PRESS_TIMEOUT, DOUBLE_CLICK_DELAY);
+					// Most clicks are single clicks, so toggle right away
+					// rather than waiting to see if another click follows.
+					PlaybackService service = ContextApplication.getService();
+					mPlayingBeforeClick = service != null && (service.getState() & PlaybackService.FLAG_PLAYING) != 0;
+					act(PlaybackService.ACTION_TOGGLE_PLAYBACK);
+					mHandler.sendEmptyMessageDelayed(MSG_END_DOUBLE_CLICK, DOUBLE_CLICK_DELAY);
 				}
 			}
 			break;
@@ -181,16 +206,15 @@ public class MediaButtonHandler implements Handler.Callback {
 	}
 
 	/**
-	 * A delayed message that performs the single press action after the double
-	 * click period has expired.
+	 * A delayed message that ends the double click period. While it is
+	 * pending, a click is the second click of a double click.
 	 */
-	private static final int MSG_SINGLE_PRESS_TIMEOUT = 0;
+	private static final int MSG_END_DOUBLE_CLICK = 0;
 
 	public boolean handleMessage(Message message)
 	{
 		switch (message.what) {
-		case MSG_SINGLE_PRESS_TIMEOUT:
-			act(PlaybackService.ACTION_TOGGLE_PLAYBACK);
+		case MSG_END_DOUBLE_CLICK:
 			break;
 		default:
 			return false;
@@ -92,31 +92,49 @@ public class MediaUtils {
 	}
 
 	/**
-	 * Return an array containing all the song ids that match the specified parameters
+	 * Return a cursor containing the ids of all the songs that match the
+	 * specified parameters, in the order they should be played. The ids are
+	 * in the first column.
 	 *
-	 * @param type Type the id represents. Must be one of the Song.TYPE_*
+	 * @param type Type the id represents. Must be one of the TYPE_*
 	 * constants.
 	 * @param id The id of the element in the MediaStore content provider for
 	 * the given type.
 	 */
-	public static long[] getAllSongIdsWith(int type, long id)
+	public static Cursor getSongIdCursor(int type, long id)
 	{
-		Cursor cursor;
-
 		switch (type) {
 		case TYPE_SONG:
-			return new long[] { id };
 		case TYPE_ARTIST:
 		case TYPE_ALBUM:
-			cursor = getMediaCursor(type, id, new String[] { MediaStore.Audio.Media._ID });
-			break;
+			return getMediaCursor(type, id, new String[] { MediaStore.Audio.Media._ID });
 		case TYPE_PLAYLIST:
-			cursor = getPlaylistCursor(id, new String[] { MediaStore.Audio.Playlists.Members.AUDIO_ID });
-			break;
+			return getPlaylistCursor(id, new String[] { MediaStore.Audio.Playlists.Members.AUDIO_ID });
 		default:
 			throw new IllegalArgumentException("Specified type not valid: " + type);
 		}
+	}
+
+	/**
+	 * Return an array containing all the song ids that match the specified parameters
+	 *
+	 * @param type Type the id represents. Must be one of the Song.TYPE_*
+	 * constants.
+	 * @param id The id of the element in the MediaStore content provider for
+	 * the given type.
+	 */
+	public static long[] getAllSongIdsWith(int type, long id)
+	{
+		if (type == TYPE_SONG)
+			return new long[] { id };
+
+		LibraryIndex index = LibraryIndex.get();
+		if (index != null && type != TYPE_PLAYLIST) {
+			long[] songs = index.getSongIds(type, id);
+			return songs.length == 0 ? null : songs;
+		}
 
+		Cursor cursor = getSongIdCursor(type, id);
 		if (cursor == null)
 			return null;
 
@@ -59,23 +59,17 @@ public class OneCellWidget extends AppWidgetProvider {
 	}
 
 	/**
-	 * Receive a broadcast sent by the PlaybackService and update the widget
-	 * accordingly.
+	 * Update the widgets with an event from the PlaybackService.
 	 *
-	 * @param intent The intent that was broadcast.
+	 * @param song The current song, or the song that replaced it.
+	 * @param state The current PlaybackService state, or -1 if unknown.
 	 */
-	public static void receive(Intent intent)
+	public static void update(Song song, int state)
 	{
-		String action = intent.getAction();
-		if (PlaybackService.EVENT_CHANGED.equals(action) || PlaybackService.EVENT_REPLACE_SONG.equals(action)) {
-			Context context = ContextApplication.getContext();
-			Song song = intent.getParcelableExtra("song");
-			int state = intent.getIntExtra("state", -1);
-
-			AppWidgetManager manager = AppWidgetManager.getInstance(context);
-			int[] ids = manager.getAppWidgetIds(new ComponentName(context, OneCellWidget.class));
-			updateWidget(context, manager, ids, song, state);
-		}
+		Context context = ContextApplication.getContext();
+		AppWidgetManager manager = AppWidgetManager.getInstance(context);
+		int[] ids = manager.getAppWidgetIds(new ComponentName(context, OneCellWidget.class));
+		updateWidget(context, manager, ids, song, state);
 	}
 
 	/**
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.util.HashSet;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.provider.BaseColumns;
+
+/**
+ * A cursor over the results of a content provider query that holds only a
+ * few pages of the results in memory at a time. Pages are loaded with
+ * LIMIT/OFFSET queries on a background thread as they are needed, and the
+ * least recently used page is discarded when too many are loaded. Rows whose
+ * page is not loaded yet read as null (or 0), which MediaView draws as an
+ * empty row; the cursor's observers are notified when the page arrives.
+ *
+ * This keeps the memory used by a huge list, and the cost of the queries
+ * for it, bounded by the part of the list that is actually being shown.
+ *
+ * Apart from the constructor, the cursor must only be used from the UI
+ * thread. Requery counts the rows and loads the first page on the loader
+ * thread, and the current rows are shown until the new ones arrive.
+ */
+public final class PagedCursor extends AbstractCursor implements Handler.Callback {
+	/**
+	 * The number of rows in a page.
+	 */
+	private static final int PAGE_SIZE = 100;
+	/**
+	 * The number of pages kept in memory.
+	 */
+	private static final int PAGE_CACHE_SIZE = 8;
+
+	/**
+	 * Load a page on the loader thread. arg1 should be the page and arg2 the
+	 * generation the page is requested for.
+	 */
+	private static final int MSG_LOAD_PAGE = 0;
+	/**
+	 * Store a loaded page, on the UI thread. arg1 should be the page, arg2
+	 * the generation it was requested for and obj the rows (or null if the
+	 * query failed).
+	 */
+	private static final int MSG_PAGE_LOADED = 1;
+	/**
+	 * Count the rows and load the first page on the loader thread, for
+	 * requery. arg2 should be the generation requested.
+	 */
+	private static final int MSG_RESET = 2;
+	/**
+	 * Replace the results with those loaded for MSG_RESET, on the UI thread.
+	 * arg1 should be the number of rows, arg2 the generation and obj the
+	 * rows of the first page (or null if there are none or the query
+	 * failed).
+	 */
+	private static final int MSG_RESET_LOADED = 3;
+
+	private final ContentResolver mResolver;
+	private final Uri mUri;
+	private final String[] mProjection;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+	private final String mSortOrder;
+
+	/**
+	 * Handler for the thread pages are loaded on.
+	 */
+	private final Handler mLoader;
+	/**
+	 * Handler for the UI thread.
+	 */
+	private final Handler mUiHandler;
+
+	/**
+	 * The number of rows in the results.
+	 */
+	private int mCount;
+	/**
+	 * The loaded pages, keyed by page number. Each page is an array of rows
+	 * holding the value of each column as a string.
+	 */
+	private final Cache<String[][]> mPages = new Cache<String[][]>(PAGE_CACHE_SIZE);
+	/**
+	 * The pages that have been requested but not yet loaded.
+	 */
+	private final HashSet<Integer> mPending = new HashSet<Integer>();
+	/**
+	 * Incremented on requery so that pages from the previous results are
+	 * discarded.
+	 */
+	private volatile int mGeneration;
+	private volatile boolean mClosed;
+
+	/**
+	 * Create a cursor and synchronously load its first page. The arguments
+	 * are as for ContentResolver.query.
+	 *
+	 * @param sortOrder The sort order. Required, since the pages must be
+	 * taken from a stable order. If null, the rows are sorted by id.
+	 */
+	public PagedCursor(ContentResolver resolver, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder)
+	{
+		mResolver = resolver;
+		mUri = uri;
+		mProjection = projection;
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+		mSortOrder = sortOrder == null ? BaseColumns._ID : sortOrder;
+
+		// The rows being loaded are on screen, so they are not background
+		// work.
+		mLoader = new Handler(ContextApplication.getWorkerLooper(ContextApplication.PRIORITY_FOREGROUND), this);
+		mUiHandler = new Handler(Looper.getMainLooper(), this);
+
+		// Let the adapter requery when the provider's data changes, as it
+		// would with the provider's own cursor.
+		setNotificationUri(resolver, uri);
+
+		reset();
+	}
+
+	/**
+	 * Count the rows and load the first page, discarding any pages loaded
+	 * before. Only called from the constructor; requery does this on the
+	 * loader thread.
+	 */
+	private void reset()
+	{
+		++mGeneration;
+		mPages.clear();
+		mPending.clear();
+		mCount = queryCount();
+		if (mCount != 0) {
+			String[][] rows = loadPage(0);
+			if (rows != null)
+				mPages.put(0, rows);
+		}
+	}
+
+	/**
+	 * Return the number of rows matched by the query.
+	 */
+	private int queryCount()
+	{
+		Cursor cursor = mResolver.query(mUri, new String[] { "count(*)" }, mSelection, mSelectionArgs, null);
+		if (cursor == null)
+			return 0;
+		int count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+		cursor.close();
+		return count;
+	}
+
+	/**
+	 * Query the rows of the given page.
+	 *
+	 * @return The rows, or null if the query failed.
+	 */
+	private String[][] loadPage(int page)
+	{
+		String sortOrder = mSortOrder + " LIMIT " + PAGE_SIZE + " OFFSET " + page * PAGE_SIZE;
+		Cursor cursor = mResolver.query(mUri, mProjection, mSelection, mSelectionArgs, sortOrder);
+		if (cursor == null)
+			return null;
+
+		int columns = mProjection.length;
+		String[][] rows = new String[cursor.getCount()][];
+		for (int i = 0; cursor.moveToNext(); ++i) {
+			String[] row = new String[columns];
+			for (int j = 0; j != columns; ++j)
+				row[j] = cursor.getString(j);
+			rows[i] = row;
+		}
+		cursor.close();
+		return rows;
+	}
+
+	/**
+	 * Return the value of the given column in the current row, or null if
+	 * the row is not loaded yet. Requests the page of the row if needed.
+	 */
+	private String getValue(int column)
+	{
+		int position = getPosition();
+		int page = position / PAGE_SIZE;
+		String[][] rows = mPages.get(page);
+		if (rows == null) {
+			if (mPending.add(page))
+				mLoader.sendMessage(mLoader.obtainMessage(MSG_LOAD_PAGE, page, mGeneration));
+			return null;
+		}
+
+		mPages.touch(page);
+		int row = position % PAGE_SIZE;
+		// The table may have shrunk since the count was taken.
+		return row < rows.length ? rows[row][column] : null;
+	}
+
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_LOAD_PAGE: {
+			if (mClosed || message.arg2 != mGeneration)
+				break;
+			String[][] rows = loadPage(message.arg1);
+			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_PAGE_LOADED, message.arg1, message.arg2, rows));
+			break;
+		}
+		case MSG_RESET: {
+			if (mClosed || message.arg2 != mGeneration)
+				break;
+			int count = queryCount();
+			String[][] rows = count == 0 ? null : loadPage(0);
+			mUiHandler.sendMessage(mUiHandler.obtainMessage(MSG_RESET_LOADED, count, message.arg2, rows));
+			break;
+		}
+		case MSG_RESET_LOADED:
+			if (mClosed || message.arg2 != mGeneration)
+				break;
+			// Drop the pages of the old results, which were shown until
+			// now.
+			mPages.clear();
+			mPending.clear();
+			mCount = message.arg1;
+			if (message.obj != null)
+				mPages.put(0, (String[][])message.obj);
+			mDataSetObservable.notifyChanged();
+			break;
+		case MSG_PAGE_LOADED:
+			if (mClosed || message.arg2 != mGeneration)
+				break;
+			mPending.remove(message.arg1);
+			// If the query failed, the page will be requested again when
+			// it is next shown.
+			if (message.obj == null)
+				break;
+			mPages.put(message.arg1, (String[][])message.obj);
+			// Rebind the rows that were shown as placeholders.
+			mDataSetObservable.notifyChanged();
+			break;
+		default:
+			return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public int getCount()
+	{
+		return mCount;
+	}
+
+	@Override
+	public String[] getColumnNames()
+	{
+		return mProjection;
+	}
+
+	@Override
+	public String getString(int column)
+	{
+		return getValue(column);
+	}
+
+	@Override
+	public long getLong(int column)
+	{
+		String value = getValue(column);
+		return value == null ? 0 : Long.parseLong(value);
+	}
+
+	@Override
+	public int getInt(int column)
+	{
+		return (int)getLong(column);
+	}
+
+	@Override
+	public short getShort(int column)
+	{
+		return (short)getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column)
+	{
+		String value = getValue(column);
+		return value == null ? 0 : Float.parseFloat(value);
+	}
+
+	@Override
+	public double getDouble(int column)
+	{
+		String value = getValue(column);
+		return value == null ? 0 : Double.parseDouble(value);
+	}
+
+	@Override
+	public boolean isNull(int column)
+	{
+		return getValue(column) == null;
+	}
+
+	@Override
+	public boolean requery()
+	{
+		if (mClosed)
+			return false;
+		// Keep the current rows until the new results have been loaded.
+		// Pages still loading for the old results are discarded.
+		++mGeneration;
+		mPending.clear();
+		mLoader.sendMessage(mLoader.obtainMessage(MSG_RESET, 0, mGeneration));
+		return super.requery();
+	}
+
+	@Override
+	public void close()
+	{
+		mClosed = true;
+		mLoader.removeMessages(MSG_LOAD_PAGE);
+		mLoader.removeMessages(MSG_RESET);
+		mUiHandler.removeMessages(MSG_PAGE_LOADED);
+		mUiHandler.removeMessages(MSG_RESET_LOADED);
+		super.close();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+/**
+ * Provides random permutations of the integers 0 to size - 1 that can be
+ * evaluated one element at a time, in constant time and without allocating
+ * memory. This allows a large set to be visited in a random order without
+ * building and shuffling an array of its elements.
+ *
+ * A permutation is determined by a key (any long) and the size of the set.
+ * The same key and size will always produce the same permutation.
+ *
+ * The permutation is implemented as a four round Feistel network over the
+ * smallest domain of an even number of bits that holds the set. Values that
+ * fall outside the set are fed through the network again until they land
+ * inside it ("cycle walking"), which keeps the mapping bijective.
+ */
+public final class Permutation {
+	/**
+	 * The number of Feistel rounds. Four rounds is enough to make the output
+	 * look random for our purposes.
+	 */
+	private static final int ROUNDS = 4;
+
+	/**
+	 * Return the element at the given index in the permutation defined by
+	 * <code>key</code> and <code>size</code>.
+	 *
+	 * @param key The key of the permutation.
+	 * @param size The number of elements in the permutation. Must be positive.
+	 * @param index The index, between 0 and size - 1.
+	 * @return The permuted index, between 0 and size - 1.
+	 */
+	public static int get(long key, int size, int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IllegalArgumentException("Index " + index + " out of range for size " + size);
+		if (size == 1)
+			return 0;
+
+		// Number of bits needed to represent size - 1, rounded up to an even
+		// number so the value may be split into two halves.
+		int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+		bits += bits & 1;
+		int halfBits = bits / 2;
+		int mask = (1 << halfBits) - 1;
+
+		long value = index;
+		do {
+			int left = (int)(value >>> halfBits) & mask;
+			int right = (int)value & mask;
+			for (int round = 0; round != ROUNDS; ++round) {
+				int next = left ^ ((int)mix(key + round * 0x9e3779b97f4a7c15L + right) & mask);
+				left = right;
+				right = next;
+			}
+			value = ((long)left << halfBits) | right;
+		} while (value >= size);
+
+		return (int)value;
+	}
+
+	/**
+	 * Scramble the bits of the given value. (This is the finalizer from the
+	 * SplitMix64 generator.)
+	 */
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
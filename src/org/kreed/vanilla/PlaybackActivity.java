@@ -22,7 +22,6 @@ import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.view.KeyEvent;
@@ -30,7 +29,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
-public class PlaybackActivity extends Activity implements Handler.Callback, View.OnClickListener {
+public class PlaybackActivity extends Activity implements Handler.Callback, View.OnClickListener, PlaybackListener {
 	Handler mHandler;
 	Looper mLooper;
 
@@ -44,11 +43,9 @@ public class PlaybackActivity extends Activity implements Handler.Callback, View
 		super.onCreate(state);
 		ContextApplication.addActivity(this);
 
-		HandlerThread thread = new HandlerThread(getClass().getName());
-		thread.start();
-
-		mLooper = thread.getLooper();
+		mLooper = ContextApplication.getWorkerLooper(ContextApplication.PRIORITY_FOREGROUND);
 		mHandler = new Handler(mLooper, this);
+		ContextApplication.addPlaybackListener(this, ContextApplication.getExecutor(mHandler));
 	}
 
 	@Override
@@ -56,7 +53,9 @@ public class PlaybackActivity extends Activity implements Handler.Callback, View
 	{
 		super.onDestroy();
 		ContextApplication.removeActivity(this);
-		mLooper.quit();
+		ContextApplication.removePlaybackListener(this);
+		// The looper is shared, so only drop our own messages.
+		mHandler.removeCallbacksAndMessages(null);
 	}
 
 	@Override
@@ -150,20 +149,33 @@ public class PlaybackActivity extends Activity implements Handler.Callback, View
 	}
 
 	/**
-	 * Called by PlaybackService when it broadcasts an intent.
-	 *
-	 * @param intent The intent that was broadcast.
+	 * Called on the worker thread when the PlaybackService has been
+	 * created.
 	 */
-	public void receive(Intent intent)
+	public void onServiceInitialized()
 	{
-		String action = intent.getAction();
+		onServiceReady();
+	}
 
-		if (PlaybackService.EVENT_INITIALIZED.equals(action))
-			onServiceReady();
+	/**
+	 * Called on the worker thread when the PlaybackService state or song
+	 * changes. Override to implement further behavior in subclasses.
+	 */
+	public void onStateChanged(int state, Song song, int position)
+	{
+		if (mCoverView != null)
+			mCoverView.onStateChanged(song, position);
+		setState(state);
+	}
+
+	/**
+	 * Called on the worker thread when a song in the timeline has been
+	 * replaced.
+	 */
+	public void onSongReplaced(int delta, Song song)
+	{
 		if (mCoverView != null)
-			mCoverView.receive(intent);
-		if (PlaybackService.EVENT_CHANGED.equals(action))
-			setState(intent.getIntExtra("state", 0));
+			mCoverView.onSongReplaced(delta, song);
 	}
 
 	static final int MENU_QUIT = 0;
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+/**
+ * Receives events from the PlaybackService. Listeners are registered with
+ * ContextApplication.addPlaybackListener, along with the Executor each event
+ * is delivered on.
+ */
+public interface PlaybackListener {
+	/**
+	 * Called when the PlaybackService has been created and may be queried.
+	 */
+	public void onServiceInitialized();
+
+	/**
+	 * Called when the state or the current song of the PlaybackService
+	 * changes.
+	 *
+	 * @param state The new state, a combination of the PlaybackService.FLAG_*
+	 * flags.
+	 * @param song The current song. May be null.
+	 * @param position The position of the current song in the timeline.
+	 */
+	public void onStateChanged(int state, Song song, int position);
+
+	/**
+	 * Called when a song in the timeline near the current song has been
+	 * replaced.
+	 *
+	 * @param delta The position of the song relative to the current song.
+	 * @param song The new song.
+	 */
+	public void onSongReplaced(int delta, Song song);
+}
@@ -21,19 +21,18 @@ package org.kreed.vanilla;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.os.Build;
@@ -43,14 +42,14 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.provider.MediaStore;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.Toast;
 
-public final class PlaybackService extends Service implements Handler.Callback, MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, SharedPreferences.OnSharedPreferenceChangeListener, SongTimeline.Callback {	
+public final class PlaybackService extends Service implements Handler.Callback, MediaPlayer.OnCompletionListener, MediaPlayer.OnErrorListener, SharedPreferences.OnSharedPreferenceChangeListener, SongTimeline.Callback, LibraryIndex.Callback {	
 	private static final int NOTIFICATION_ID = 2;
 
 	/**
@@ -133,10 +132,11 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	 * be placed directly after the playing song after this action is invoked.
 	 */
 	public static final String ACTION_FINISH_ENQUEUEING = "org.kreed.vanilla.action.FINISH_ENQUEUEING";
-
-	public static final String EVENT_REPLACE_SONG = "org.kreed.vanilla.event.REPLACE_SONG";
-	public static final String EVENT_CHANGED = "org.kreed.vanilla.event.CHANGED";
-	public static final String EVENT_INITIALIZED = "org.kreed.vanilla.event.INITIALIZED";
+	/**
+	 * Start or pause playback, according to the boolean extra "playing".
+	 * Handled in order with the other actions.
+	 */
+	public static final String ACTION_SET_PLAYING = "org.kreed.vanilla.action.SET_PLAYING";
 
 	public static final int FLAG_NO_MEDIA = 0x2;
 	public static final int FLAG_PLAYING = 0x1;
@@ -152,8 +152,57 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	public static final int WHEN_PLAYING = 1;
 	public static final int ALWAYS = 2;
 
-	boolean mHeadsetPause;
-	boolean mHeadsetOnly;
+	/**
+	 * The position of the player at a point in time. Immutable, so it can be
+	 * read from any thread without taking the MediaPlayer lock, which is held
+	 * while a song is being prepared.
+	 */
+	public static final class Clock {
+		/**
+		 * The position in the song, in milliseconds, at the anchor time.
+		 */
+		public final int position;
+		/**
+		 * The duration of the song in milliseconds.
+		 */
+		public final int duration;
+		/**
+		 * The time of the position, from SystemClock.elapsedRealtime.
+		 */
+		public final long anchor;
+		/**
+		 * True if the position was advancing at the anchor time.
+		 */
+		public final boolean playing;
+
+		public Clock(int position, int duration, long anchor, boolean playing)
+		{
+			this.position = position;
+			this.duration = duration;
+			this.anchor = anchor;
+			this.playing = playing;
+		}
+
+		/**
+		 * Return the position in the song now, in milliseconds, assuming it
+		 * has advanced at normal speed since the anchor time if playing.
+		 */
+		public int getPosition()
+		{
+			if (!playing)
+				return position;
+			long position = this.position + SystemClock.elapsedRealtime() - anchor;
+			return (int)Math.min(position, duration);
+		}
+	}
+
+	/**
+	 * The clock before any song has been prepared.
+	 */
+	private static final Clock STOPPED_CLOCK = new Clock(0, 0, 0, false);
+
+	volatile boolean mHeadsetPause;
+	volatile boolean mHeadsetOnly;
 	private boolean mScrobble;
 	private int mNotificationMode;
 	/**
@@ -163,6 +212,14 @@ public final class PlaybackService extends Service implements Handler.Callback,
 
 	private Looper mLooper;
 	private Handler mHandler;
+	/**
+	 * Looper for a thread that reads chosen songs from the MediaStore.
+	 * Reading a large set of songs can take some time, so it is done here
+	 * rather than on the service thread, which adds the songs to the
+	 * timeline once they have been read.
+	 */
+	private Looper mChooseLooper;
+	private Handler mChooseHandler;
 	MediaPlayer mMediaPlayer;
 	private boolean mMediaPlayerInitialized;
 	private PowerManager.WakeLock mWakeLock;
@@ -172,13 +229,27 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	private NotificationManager mNotificationManager;
 
 	SongTimeline mTimeline;
-	int mState = 0x80;
-	Object mStateLock = new Object();
-	boolean mPlayingBeforeCall;
+	/**
+	 * Prepares the songs after the current song in the background.
+	 */
+	private Prefetcher mPrefetcher;
+	/**
+	 * The current state. Only modified on the service thread.
+	 */
+	volatile int mState = 0x80;
+	/**
+	 * True if playback was paused for a call and should resume when it
+	 * ends. Only used on the service thread.
+	 */
+	private boolean mPlayingBeforeCall;
 	private int mPendingSeek;
+	/**
+	 * The last position of the player, replaced whenever the player is
+	 * prepared, started, paused or seeked.
+	 */
+	private volatile Clock mClock = STOPPED_CLOCK;
 	private Song mLastSongBroadcast;
-	boolean mPlugged;
-	private ContentObserver mMediaObserver;
+	volatile boolean mPlugged;
 	public Receiver mReceiver;
 	public InCallListener mCallListener;
 	private boolean mLoaded;
@@ -210,11 +281,20 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		if (mTimeline.isShuffling())
 			mState |= FLAG_SHUFFLE;
 
+		mPrefetcher = new Prefetcher(mTimeline);
+
 		ContextApplication.setService(this);
 
 		mLooper = thread.getLooper();
 		mHandler = new Handler(mLooper, this);
 		mHandler.sendEmptyMessage(CREATE);
+
+		HandlerThread chooseThread = new HandlerThread("SongChooser");
+		chooseThread.start();
+		mChooseLooper = chooseThread.getLooper();
+		mChooseHandler = new Handler(mChooseLooper, this);
+
+		LibraryIndex.addCallback(this);
 	}
 
 	/**
@@ -261,34 +341,55 @@ public final class PlaybackService extends Service implements Handler.Callback,
 			} else if (ACTION_PREVIOUS_SONG_AUTOPLAY.equals(action)) {
 				go(-1, true);
 			} else if (ACTION_PLAY_ITEMS.equals(action)) {
-				mTimeline.chooseSongs(false, intent.getIntExtra("type", 3), intent.getLongExtra("id", -1));
-				mHandler.sendEmptyMessage(TRACK_CHANGED);
+				// Playing a set replaces everything that was enqueued after
+				// the current song, so there is no need to finish adding
+				// the songs chosen earlier.
+				mChooseHandler.removeMessages(CHOOSE_SONGS);
+				mHandler.removeMessages(SONGS_CHOSEN);
+				mTimeline.cancelChoosing();
+				chooseSongs(false, intent);
 			} else if (ACTION_ENQUEUE_ITEMS.equals(action)) {
-				mTimeline.chooseSongs(true, intent.getIntExtra("type", 3), intent.getLongExtra("id", -1));
-				mHandler.removeMessages(SAVE_STATE);
-				mHandler.sendEmptyMessageDelayed(SAVE_STATE, 5000);
+				chooseSongs(true, intent);
+			} else if (ACTION_SET_PLAYING.equals(action)) {
+				if (intent.getBooleanExtra("playing", false))
+					setFlag(FLAG_PLAYING);
+				else
+					unsetFlag(FLAG_PLAYING);
 			} else if (ACTION_FINISH_ENQUEUEING.equals(action)) {
-				mTimeline.finishEnqueueing();
+				mChooseHandler.sendEmptyMessage(FINISH_ENQUEUEING);
 			}
 		}
 	}
 
+	/**
+	 * Read the songs described by the given intent on the song chooser
+	 * thread and add them to the timeline.
+	 *
+	 * @param enqueue True to enqueue the songs, false to play them.
+	 * @param intent An intent with "type" and "id" extras.
+	 * @see SongTimeline#readChosenSongs(int, long)
+	 */
+	private void chooseSongs(boolean enqueue, Intent intent)
+	{
+		Long id = Long.valueOf(intent.getLongExtra("id", -1));
+		int type = intent.getIntExtra("type", 3);
+		mChooseHandler.sendMessage(mChooseHandler.obtainMessage(CHOOSE_SONGS, enqueue ? 1 : 0, type, id));
+	}
+
 	@Override
 	public void onDestroy()
 	{
 		ContextApplication.setService(null);
 
-		super.onDestroy();
+		// Handled after the commands already sent, so none are lost.
+		mHandler.sendEmptyMessage(SHUTDOWN);
 
-		if (mMediaPlayer != null) {
-			mTimeline.saveState(this, mMediaPlayer.getCurrentPosition());
-
-			unsetFlag(FLAG_PLAYING);
-			mMediaPlayer.release();
-			mMediaPlayer = null;
-		}
+		super.onDestroy();
 
-		mLooper.quit();
+		LibraryIndex.removeCallback(this);
+		mChooseLooper.quit();
+		mTimeline.cancelChoosing();
+		mPrefetcher.quit();
 
 		try {
 			unregisterReceiver(mReceiver);
@@ -351,7 +452,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 
 	private void initialize()
 	{
-		ContextApplication.broadcast(new Intent(EVENT_INITIALIZED));
+		ContextApplication.dispatchServiceInitialized();
 
 		mMediaPlayer = new MediaPlayer();
 		mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
@@ -388,16 +489,20 @@ public final class PlaybackService extends Service implements Handler.Callback,
 			mMediaPlayer.setVolume(volume, volume);
 		}
 		mIdleTimeout = settings.getBoolean("use_idle_timeout", false) ? settings.getInt("idle_timeout", 3600) : 0;
+		mPrefetcher.setCount(Integer.parseInt(settings.getString("prefetch_count", String.valueOf(Prefetcher.DEFAULT_COUNT))));
+		mPrefetcher.setBudget(Integer.parseInt(settings.getString("prefetch_budget", String.valueOf(Prefetcher.DEFAULT_BUDGET))));
 
 		PowerManager powerManager = (PowerManager)getSystemService(POWER_SERVICE);
 		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "VanillaMusicSongChangeLock");
 
 		mLoaded = true;
 
-		setCurrentSong(0);
+		setCurrentSong(0, false);
 
-		if (mPendingSeek != 0)
+		if (mPendingSeek != 0) {
 			mMediaPlayer.seekTo(mPendingSeek);
+			updateClock();
+		}
 
 		mHandler.sendEmptyMessage(POST_CREATE);
 	}
@@ -410,7 +515,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		} else if ("headset_only".equals(key)) {
 			mHeadsetOnly = settings.getBoolean(key, false);
 			if (mHeadsetOnly && isSpeakerOn())
-				unsetFlag(FLAG_PLAYING);
+				updateState(mState & ~FLAG_PLAYING);
 		} else if ("remote_player".equals(key)) {
 			// the preference is loaded in SongNotification class
 			updateNotification(getSong(0));
@@ -422,42 +527,55 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		} else if ("volume".equals(key)) {
 			float volume = settings.getFloat("volume", 1.0f);
 			mCurrentVolume = mUserVolume = volume;
-			if (mMediaPlayer != null) {
-				synchronized (mMediaPlayer) {
-					mMediaPlayer.setVolume(volume, volume);
-				}
-			}
+			if (mMediaPlayer != null)
+				mMediaPlayer.setVolume(volume, volume);
 		} else if ("media_button".equals(key)) {
 			MediaButtonHandler.getInstance().setUseHeadsetControls(settings.getBoolean("media_button", true));
 			setupReceiver();
 		} else if ("use_idle_timeout".equals(key) || "idle_timeout".equals(key)) {
 			mIdleTimeout = settings.getBoolean("use_idle_timeout", false) ? settings.getInt("idle_timeout", 3600) : 0;
-			userActionTriggered();
+			resetIdleTimeout();
+		} else if ("prefetch_count".equals(key)) {
+			mPrefetcher.setCount(Integer.parseInt(settings.getString(key, String.valueOf(Prefetcher.DEFAULT_COUNT))));
+			mPrefetcher.prefetch();
+		} else if ("prefetch_budget".equals(key)) {
+			mPrefetcher.setBudget(Integer.parseInt(settings.getString(key, String.valueOf(Prefetcher.DEFAULT_BUDGET))));
+		} else if ("scan_directories".equals(key)) {
+			if (settings.getString(key, "").trim().length() == 0)
+				LibraryIndex.reload();
+			else
+				LibraryScanner.scanInBackground();
 		}
 	}
 
 	private void broadcastReplaceSong(int delta, Song song)
 	{
-		Intent intent = new Intent(EVENT_REPLACE_SONG);
-		intent.putExtra("pos", delta);
-		intent.putExtra("song", song);
-		mHandler.sendMessage(mHandler.obtainMessage(BROADCAST, intent));
+		ContextApplication.dispatchSongReplaced(delta, song);
+		// The widgets only show the current song.
+		if (delta == 0)
+			ContextApplication.updateWidgets(song, -1);
 	}
 
+	/**
+	 * Set a flag in the state. The change is made on the service thread.
+	 */
 	void setFlag(int flag)
 	{
-		synchronized (mStateLock) {
-			updateState(mState | flag);
-		}
+		mHandler.sendMessage(mHandler.obtainMessage(UPDATE_FLAGS, flag, 0));
 	}
 
+	/**
+	 * Clear a flag in the state. The change is made on the service thread.
+	 */
 	void unsetFlag(int flag)
 	{
-		synchronized (mStateLock) {
-			updateState(mState & ~flag);
-		}
+		mHandler.sendMessage(mHandler.obtainMessage(UPDATE_FLAGS, 0, flag));
 	}
 
+	/**
+	 * Replace the state and apply the changes to the player. Must be called
+	 * on the service thread.
+	 */
 	private void updateState(int state)
 	{
 		state &= ALL_FLAGS;
@@ -475,21 +593,12 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		mState = state;
 
 		if (state != oldState || song != mLastSongBroadcast) {
-			Intent intent = new Intent(EVENT_CHANGED);
-			intent.putExtra("state", state);
-			intent.putExtra("song", song);
-			intent.putExtra("pos", mTimeline.getCurrentPosition());
-			mHandler.sendMessage(mHandler.obtainMessage(BROADCAST, intent));
-
-			if (mScrobble) {
-				intent = new Intent("net.jjc1138.android.scrobbler.action.MUSIC_STATUS");
-				intent.putExtra("playing", (state & FLAG_PLAYING) != 0);
-				if (song != null)
-					intent.putExtra("id", (int)song.id);
-				sendBroadcast(intent);
-			}
-
-			updateNotification(song);
+			// A single skip changes the state several times in a row, so
+			// only the state at the end of each delay is published.
+			if (!mHandler.hasMessages(DISPATCH_STATE))
+				mHandler.sendEmptyMessageDelayed(DISPATCH_STATE, DISPATCH_DELAY);
+			if (!mHandler.hasMessages(PUBLISH_STATE))
+				mHandler.sendEmptyMessageDelayed(PUBLISH_STATE, PUBLISH_DELAY);
 
 			mLastSongBroadcast = song;
 		}
@@ -510,35 +619,89 @@ public final class PlaybackService extends Service implements Handler.Callback,
 			Toast.makeText(this, R.string.repeat_disabling, Toast.LENGTH_SHORT).show();
 		}
 
-		if ((state & FLAG_NO_MEDIA) != 0 && (oldState & FLAG_NO_MEDIA) == 0) {
-			ContentResolver resolver = ContextApplication.getContext().getContentResolver();
-			mMediaObserver = new MediaContentObserver(mHandler);
-			resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mMediaObserver);
-		} else if ((state & FLAG_NO_MEDIA) == 0 && (oldState & FLAG_NO_MEDIA) != 0) {
-			ContentResolver resolver = ContextApplication.getContext().getContentResolver();
-			resolver.unregisterContentObserver(mMediaObserver);
-			mMediaObserver = null;
-		}
-
 		if ((state & FLAG_PLAYING) != 0 && (oldState & FLAG_PLAYING) == 0) {
-			if (mNotificationMode != NEVER)
+			if (mNotificationMode != NEVER) {
+				// The published notification may be out of date, and we
+				// need one now.
+				updateNotification(song);
 				startForegroundCompat(NOTIFICATION_ID, mNotification);
+			}
 			if (mMediaPlayerInitialized) {
-				synchronized (mMediaPlayer) {
-					mMediaPlayer.start();
-				}
+				mMediaPlayer.start();
+				updateClock();
 			}
 		} else if ((state & FLAG_PLAYING) == 0 && (oldState & FLAG_PLAYING) != 0) {
 			stopForegroundCompat(false);
 			if (mMediaPlayerInitialized) {
-				synchronized (mMediaPlayer) {
-					mMediaPlayer.pause();
-				}
+				mMediaPlayer.pause();
+				updateClock();
 			}
 		}
 
 		if ((oldState & USER_MASK) != (state & USER_MASK))
-			userActionTriggered();
+			resetIdleTimeout();
+	}
+
+	/**
+	 * Send the current state to the PlaybackListeners.
+	 */
+	private void dispatchState()
+	{
+		ContextApplication.dispatchStateChanged(mState, getSong(0), mTimeline.getCurrentPosition());
+	}
+
+	/**
+	 * Send the current state to the notification, the widgets and the
+	 * scrobbler.
+	 */
+	private void publishState()
+	{
+		int state = mState;
+		Song song = getSong(0);
+		scrobble(state, song);
+		updateNotification(song);
+		ContextApplication.updateWidgets(song, state);
+	}
+
+	/**
+	 * Save the state and release the player, then stop the service thread.
+	 * The commands sent before the SHUTDOWN message have been handled by
+	 * now; those sent later, or still delayed, are dropped.
+	 */
+	private void shutdown()
+	{
+		if (mMediaPlayer != null) {
+			mTimeline.saveState(this, mMediaPlayer.getCurrentPosition());
+			mMediaPlayer.release();
+			mMediaPlayer = null;
+			mMediaPlayerInitialized = false;
+			mClock = STOPPED_CLOCK;
+
+			// The service is gone, so publish the paused state without
+			// posting the notification again.
+			int state = mState & ~FLAG_PLAYING;
+			mState = state;
+			Song song = getSong(0);
+			scrobble(state, song);
+			ContextApplication.updateWidgets(song, state);
+			stopForegroundCompat(true);
+		}
+
+		mLooper.quit();
+	}
+
+	/**
+	 * Send the given state to the scrobbler, if enabled.
+	 */
+	private void scrobble(int state, Song song)
+	{
+		if (mScrobble) {
+			Intent intent = new Intent("net.jjc1138.android.scrobbler.action.MUSIC_STATUS");
+			intent.putExtra("playing", (state & FLAG_PLAYING) != 0);
+			if (song != null)
+				intent.putExtra("id", (int)song.id);
+			sendBroadcast(intent);
+		}
 	}
 
 	private void updateNotification(Song song)
@@ -576,55 +739,57 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	}
 
 	/**
-	 * Toggle a flag in the state on or off
+	 * Toggle a flag in the state on or off. The change is made on the
+	 * service thread.
 	 *
 	 * @param flag The flag to be toggled (FLAG_PLAYING, FLAG_SHUFFLE, or FLAG_REPEAT)
 	 */
 	public void toggleFlag(int flag)
 	{
-		synchronized (mStateLock) {
-			if ((mState & flag) == 0)
-				setFlag(flag);
-			else
-				unsetFlag(flag);
-		}
+		mHandler.sendMessage(mHandler.obtainMessage(TOGGLE_FLAG, flag, 0));
 	}
 
 	/**
-	 * Move <code>delta</code> places away from the current song.
+	 * Move <code>delta</code> places away from the current song. The change
+	 * is made on the service thread.
 	 */
 	public void setCurrentSong(int delta)
-        {
-                setCurrentSong( delta, (delta!=0) );
-        }
+	{
+		mHandler.sendMessage(mHandler.obtainMessage(SET_CURRENT_SONG, delta, 0));
+	}
 
-	public void setCurrentSong(int delta, boolean isUserAction)
+	/**
+	 * Move <code>delta</code> places away from the current song and prepare
+	 * it. Must be called on the service thread.
+	 *
+	 * @param isUserAction True if the change should reset the idle timeout.
+	 */
+	private void setCurrentSong(int delta, boolean isUserAction)
 	{
 		if (mMediaPlayer == null)
 			return;
 
-		synchronized (mMediaPlayer) {
-			mMediaPlayer.stop();
-		}
-		
+		mMediaPlayer.stop();
+
 		Song song = mTimeline.shiftCurrentSong(delta);
 		if (song == null) {
-			setFlag(FLAG_NO_MEDIA);
+			mClock = STOPPED_CLOCK;
+			updateState(mState | FLAG_NO_MEDIA);
 			return;
 		} else if ((mState & FLAG_NO_MEDIA) != 0) {
-			unsetFlag(FLAG_NO_MEDIA);
+			updateState(mState & ~FLAG_NO_MEDIA);
 		}
 
 		try {
-			synchronized (mMediaPlayer) {
-				mMediaPlayer.reset();
-				mMediaPlayer.setDataSource(song.path);
-				mMediaPlayer.prepare();
-				if (!mMediaPlayerInitialized)
-					mMediaPlayerInitialized = true;
-			}
+			mMediaPlayer.reset();
+			mMediaPlayer.setDataSource(song.path);
+			mMediaPlayer.prepare();
+			if (!mMediaPlayerInitialized)
+				mMediaPlayerInitialized = true;
 			if ((mState & FLAG_PLAYING) != 0)
 				mMediaPlayer.start();
+			// Publish the new duration before the state change.
+			updateClock();
 			// Ensure that we broadcast a change event even if we play the same
 			// song again.
 			mLastSongBroadcast = null;
@@ -634,7 +799,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		}
 
 		if (isUserAction)
-			userActionTriggered();
+			resetIdleTimeout();
 
 		mHandler.sendEmptyMessage(PROCESS_SONG);
 	}
@@ -651,9 +816,10 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	{
 		Log.e("VanillaMusic", "MediaPlayer error: " + what + " " + extra);
 		mMediaPlayer.reset();
+		mClock = STOPPED_CLOCK;
 		Song song = getSong(+1);
 		if (song != null && !song.query(true))
-			setFlag(FLAG_NO_MEDIA);
+			updateState(mState | FLAG_NO_MEDIA);
 		else
 			mHandler.sendEmptyMessage(TRACK_CHANGED);
 		return true;
@@ -678,20 +844,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		if (!mLoaded)
 			showStartupToast();
 
-		if (autoPlay) {
-			synchronized (mStateLock) {
-				mState |= FLAG_PLAYING;
-			}
-		}
-
-		if (mLoaded) {
-			if (delta == 0)
-				toggleFlag(FLAG_PLAYING);
-			else
-				setCurrentSong(delta);
-		} else {
-			mHandler.sendMessage(mHandler.obtainMessage(GO, delta, 0));
-		}
+		mHandler.sendMessage(mHandler.obtainMessage(GO, delta, autoPlay ? 1 : 0));
 	}
 
 	private class Receiver extends BroadcastReceiver {
@@ -720,40 +873,19 @@ public final class PlaybackService extends Service implements Handler.Callback,
 			case TelephonyManager.CALL_STATE_RINGING:
 			case TelephonyManager.CALL_STATE_OFFHOOK:
 				MediaButtonHandler.getInstance().setInCall(true);
-				if (!mPlayingBeforeCall) {
-					synchronized (mStateLock) {
-						if (mPlayingBeforeCall = (mState & FLAG_PLAYING) != 0)
-							unsetFlag(FLAG_PLAYING);
-					}
-				}
+				mHandler.sendMessage(mHandler.obtainMessage(CALL_STATE, 1, 0));
 				break;
 			case TelephonyManager.CALL_STATE_IDLE:
 				MediaButtonHandler.getInstance().setInCall(false);
-				if (mPlayingBeforeCall) {
-					setFlag(FLAG_PLAYING);
-					mPlayingBeforeCall = false;
-				}
+				mHandler.sendMessage(mHandler.obtainMessage(CALL_STATE, 0, 0));
 				break;
 			}
 		}
 	};
 
-	private class MediaContentObserver extends ContentObserver {
-		public MediaContentObserver(Handler handler)
-		{
-			super(handler);
-		}
-
-		@Override
-		public void onChange(boolean selfChange)
-		{
-			setCurrentSong(0);
-		}
-	}
-
 	public void onSharedPreferenceChanged(SharedPreferences settings, String key)
 	{
-		loadPreference(key);
+		mHandler.sendMessage(mHandler.obtainMessage(LOAD_PREFERENCE, key));
 	}
 
 	private void setupReceiver()
@@ -775,6 +907,13 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		registerReceiver(mReceiver, filter);
 	}
 
+	/**
+	 * Toggle playback or change songs, after the service has been
+	 * initialized.
+	 *
+	 * arg1 should be the delta to move, or 0 to toggle playback. arg2 should
+	 * be 1 to start playback afterwards.
+	 */
 	private static final int GO = 0;
 	private static final int POST_CREATE = 1;
 	private static final int MEDIA_BUTTON = 2;
@@ -800,26 +939,146 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	 * obj should an Integer representing the delta to pass to go.
 	 */
 	private static final int CALL_GO = 8;
+	private static final int SAVE_STATE = 12;
+	private static final int PROCESS_SONG = 13;
 	/**
-	 * Broadcast the given intent with ContextApplication.
+	 * Read a set of songs and send them to the service thread with
+	 * SONGS_CHOSEN and SONGS_STREAMED. Handled on the song chooser thread.
 	 *
-	 * obj should contain the intent to broadcast.
+	 * arg1 should be 1 to enqueue the set or 0 to play it, arg2 should be the
+	 * type of the set and obj should be a Long holding its id.
 	 *
-	 * @see ContextApplication#broadcast(Intent)
+	 * @see SongTimeline#readChosenSongs(int, long)
 	 */
-	private static final int BROADCAST = 9;
-	private static final int SAVE_STATE = 12;
-	private static final int PROCESS_SONG = 13;
+	private static final int CHOOSE_SONGS = 14;
+	/**
+	 * Calls {@link SongTimeline#finishEnqueueing()}. Sent to the song
+	 * chooser thread, which passes it on to the service thread, so it is
+	 * ordered after the songs from earlier CHOOSE_SONGS messages.
+	 */
+	private static final int FINISH_ENQUEUEING = 15;
+	/**
+	 * Bring the timeline and the player up to date with a new library index.
+	 * Only the most recent of these messages is handled.
+	 *
+	 * obj should be the new LibraryIndex.
+	 *
+	 * @see PlaybackService#libraryIndexChanged(LibraryIndex)
+	 */
+	private static final int LIBRARY_CHANGED = 16;
+	/**
+	 * Send the current state to the PlaybackListeners. Sent DISPATCH_DELAY
+	 * after the state changes, unless already pending.
+	 *
+	 * @see PlaybackService#dispatchState()
+	 */
+	private static final int DISPATCH_STATE = 17;
+	/**
+	 * Send the current state to the notification, the widgets and the
+	 * scrobbler. Sent PUBLISH_DELAY after the state changes, unless already
+	 * pending.
+	 *
+	 * @see PlaybackService#publishState()
+	 */
+	private static final int PUBLISH_STATE = 18;
+
+	/**
+	 * The longest time, in milliseconds, a state change waits before it is
+	 * sent to the PlaybackListeners. About one display frame.
+	 */
+	private static final int DISPATCH_DELAY = 16;
+	/**
+	 * The longest time, in milliseconds, a state change waits before it is
+	 * sent to the notification, the widgets and the scrobbler. Long enough
+	 * for the state to settle after a skip.
+	 */
+	private static final int PUBLISH_DELAY = 250;
+	/**
+	 * Set and clear flags in the state.
+	 *
+	 * arg1 should be the flags to set and arg2 the flags to clear.
+	 */
+	private static final int UPDATE_FLAGS = 19;
+	/**
+	 * Toggle a flag in the state.
+	 *
+	 * arg1 should be the flag.
+	 */
+	private static final int TOGGLE_FLAG = 20;
+	/**
+	 * Move away from the current song as a user action.
+	 *
+	 * arg1 should be the delta to move.
+	 */
+	private static final int SET_CURRENT_SONG = 21;
+	/**
+	 * Seek in the current song.
+	 *
+	 * arg1 should be the proportion of the song to seek to, out of 1000.
+	 */
+	private static final int SEEK = 22;
+	/**
+	 * Remove a song from the timeline.
+	 *
+	 * obj should be a Long holding the id of the song.
+	 *
+	 * @see PlaybackService#removeSong(long)
+	 */
+	private static final int REMOVE_SONG = 23;
+	/**
+	 * Reload a changed preference.
+	 *
+	 * obj should be the key of the preference.
+	 */
+	private static final int LOAD_PREFERENCE = 24;
+	/**
+	 * Reset the idle timeout after a user action.
+	 */
+	private static final int USER_ACTION = 25;
+	/**
+	 * Pause playback when a call starts and resume it when the call ends,
+	 * if it was paused for the call.
+	 *
+	 * arg1 should be 1 if in a call, 0 otherwise.
+	 */
+	private static final int CALL_STATE = 26;
+	/**
+	 * Add a set of songs read on the song chooser thread to the timeline,
+	 * starting playback of the set if it is to be played.
+	 *
+	 * arg1 should be 1 to enqueue the set or 0 to play it and obj should be
+	 * the SongTimeline.ChosenSongs.
+	 *
+	 * @see SongTimeline#addChosenSongs(boolean, SongTimeline.ChosenSongs)
+	 */
+	private static final int SONGS_CHOSEN = 27;
+	/**
+	 * Add a batch of songs streamed on the song chooser thread to the
+	 * timeline.
+	 *
+	 * arg1 should be the generation of the set and obj should be an
+	 * ArrayList&lt;Song&gt; holding the batch.
+	 *
+	 * @see SongTimeline#addStreamedSongs(ArrayList, int)
+	 */
+	private static final int SONGS_STREAMED = 28;
+	/**
+	 * Save the state, release the player and stop the service thread. Sent
+	 * by onDestroy.
+	 *
+	 * @see PlaybackService#shutdown()
+	 */
+	private static final int SHUTDOWN = 29;
 
 	public boolean handleMessage(Message message)
 	{
 		switch (message.what) {
 		case MEDIA_BUTTON:
-			toggleFlag(FLAG_PLAYING);
+			updateState(mState ^ FLAG_PLAYING);
 			break;
 		case TRACK_CHANGED:
 			setCurrentSong(+1, false);
-			setFlag(FLAG_PLAYING);
+			updateState(mState | FLAG_PLAYING);
 			break;
 		case RELEASE_WAKE_LOCK:
 			if (mWakeLock != null && mWakeLock.isHeld())
@@ -831,9 +1090,46 @@ public final class PlaybackService extends Service implements Handler.Callback,
 			break;
 		case GO:
 			if (message.arg1 == 0)
-				toggleFlag(FLAG_PLAYING);
+				updateState(mState ^ FLAG_PLAYING);
 			else
-				setCurrentSong(message.arg1);
+				setCurrentSong(message.arg1, true);
+			// Start playback once the new song is prepared, as for
+			// TRACK_CHANGED.
+			if (message.arg2 == 1)
+				updateState(mState | FLAG_PLAYING);
+			break;
+		case UPDATE_FLAGS:
+			updateState(mState & ~message.arg2 | message.arg1);
+			break;
+		case TOGGLE_FLAG:
+			updateState(mState ^ message.arg1);
+			break;
+		case SET_CURRENT_SONG:
+			setCurrentSong(message.arg1, message.arg1 != 0);
+			break;
+		case SEEK:
+			seek(message.arg1);
+			break;
+		case REMOVE_SONG:
+			if (mTimeline.removeSong((Long)message.obj))
+				setCurrentSong(0, false);
+			break;
+		case LOAD_PREFERENCE:
+			loadPreference((String)message.obj);
+			break;
+		case USER_ACTION:
+			resetIdleTimeout();
+			break;
+		case CALL_STATE:
+			if (message.arg1 == 1) {
+				if (!mPlayingBeforeCall && (mState & FLAG_PLAYING) != 0) {
+					mPlayingBeforeCall = true;
+					updateState(mState & ~FLAG_PLAYING);
+				}
+			} else if (mPlayingBeforeCall) {
+				mPlayingBeforeCall = false;
+				updateState(mState | FLAG_PLAYING);
+			}
 			break;
 		case SAVE_STATE:
 			// For unexpected terminations: crashes, task killers, etc.
@@ -841,7 +1137,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 			mTimeline.saveState(this, 0);
 			break;
 		case PROCESS_SONG:
-			getSong(+2);
+			mPrefetcher.prefetch();
 			mTimeline.purge();
 			mHandler.removeMessages(SAVE_STATE);
 			mHandler.sendEmptyMessageDelayed(SAVE_STATE, 5000);
@@ -869,7 +1165,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		case FADE_OUT:
 			int progress = message.arg1 - 1;
 			if (progress == 0) {
-				unsetFlag(FLAG_PLAYING);
+				updateState(mState & ~FLAG_PLAYING);
 				mCurrentVolume = mUserVolume;
 			} else {
 				// Fade out on a x^4 curve. This produces a smoother
@@ -881,14 +1177,53 @@ public final class PlaybackService extends Service implements Handler.Callback,
 				
 				mHandler.sendMessageDelayed(mHandler.obtainMessage(FADE_OUT, progress, 0), 50);
 			}
-			if (mMediaPlayer != null) {
-				synchronized (mMediaPlayer) {
-					mMediaPlayer.setVolume(mCurrentVolume, mCurrentVolume);
-				}
+			if (mMediaPlayer != null)
+				mMediaPlayer.setVolume(mCurrentVolume, mCurrentVolume);
+			break;
+		case CHOOSE_SONGS: {
+			SongTimeline.ChosenSongs chosen = mTimeline.readChosenSongs(message.arg2, (Long)message.obj);
+			if (chosen != null) {
+				mHandler.sendMessage(mHandler.obtainMessage(SONGS_CHOSEN, message.arg1, 0, chosen));
+				mTimeline.streamChosenSongs(chosen, mHandler, SONGS_STREAMED);
+			}
+			break;
+		}
+		case SONGS_CHOSEN: {
+			mTimeline.addChosenSongs(message.arg1 == 1, (SongTimeline.ChosenSongs)message.obj);
+			if (message.arg1 == 0) {
+				setCurrentSong(+1, false);
+				updateState(mState | FLAG_PLAYING);
 			}
+			mHandler.removeMessages(SAVE_STATE);
+			mHandler.sendEmptyMessageDelayed(SAVE_STATE, 5000);
 			break;
-		case BROADCAST:
-			ContextApplication.broadcast((Intent)message.obj);
+		}
+		case SONGS_STREAMED: {
+			@SuppressWarnings("unchecked")
+			ArrayList<Song> songs = (ArrayList<Song>)message.obj;
+			if (mTimeline.addStreamedSongs(songs, message.arg1)) {
+				mHandler.removeMessages(SAVE_STATE);
+				mHandler.sendEmptyMessageDelayed(SAVE_STATE, 5000);
+			}
+			break;
+		}
+		case FINISH_ENQUEUEING:
+			if (message.getTarget() == mChooseHandler)
+				mHandler.sendEmptyMessage(FINISH_ENQUEUEING);
+			else
+				mTimeline.finishEnqueueing();
+			break;
+		case LIBRARY_CHANGED:
+			updateLibrary((LibraryIndex)message.obj);
+			break;
+		case DISPATCH_STATE:
+			dispatchState();
+			break;
+		case PUBLISH_STATE:
+			publishState();
+			break;
+		case SHUTDOWN:
+			shutdown();
 			break;
 		default:
 			return false;
@@ -903,21 +1238,34 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	 */
 	public int getState()
 	{
-		synchronized (mStateLock) {
-			return mState;
-		}
+		return mState;
 	}
 
 	/**
-	 * Returns the current position in current song in milliseconds.
+	 * Replace the clock with the current position of the player.
+	 */
+	private void updateClock()
+	{
+		if (!mMediaPlayerInitialized)
+			return;
+		mClock = new Clock(mMediaPlayer.getCurrentPosition(), mMediaPlayer.getDuration(), SystemClock.elapsedRealtime(), mMediaPlayer.isPlaying());
+	}
+
+	/**
+	 * Returns the last published position of the player. Does not block.
+	 */
+	public Clock getClock()
+	{
+		return mClock;
+	}
+
+	/**
+	 * Returns the current position in current song in milliseconds,
+	 * extrapolated from the clock.
 	 */
 	public int getPosition()
 	{
-		if (mMediaPlayer == null)
-			return 0;
-		synchronized (mMediaPlayer) {
-			return mMediaPlayer.getCurrentPosition();
-		}
+		return mClock.getPosition();
 	}
 
 	/**
@@ -925,11 +1273,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	 */
 	public int getDuration()
 	{
-		if (mMediaPlayer == null)
-			return 0;
-		synchronized (mMediaPlayer) {
-			return mMediaPlayer.getDuration();
-		}
+		return mClock.duration;
 	}
 
 	/**
@@ -943,18 +1287,31 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	}
 
 	/**
-	 * Seek to a position in the current song.
+	 * Seek to a position in the current song. The seek is made on the
+	 * service thread.
 	 *
 	 * @param progress Proportion of song completed (where 1000 is the end of the song)
 	 */
 	public void seekToProgress(int progress)
 	{
-		if (mMediaPlayer == null)
+		mHandler.sendMessage(mHandler.obtainMessage(SEEK, progress, 0));
+	}
+
+	/**
+	 * Seek to a position in the current song. Must be called on the service
+	 * thread.
+	 *
+	 * @param progress Proportion of song completed (where 1000 is the end of the song)
+	 */
+	private void seek(int progress)
+	{
+		if (!mMediaPlayerInitialized)
 			return;
-		synchronized (mMediaPlayer) {
-			long position = (long)mMediaPlayer.getDuration() * progress / 1000;
-			mMediaPlayer.seekTo((int)position);
-		}
+		Clock clock = mClock;
+		int position = (int)((long)clock.duration * progress / 1000);
+		mMediaPlayer.seekTo(position);
+		// Seeking completes asynchronously, so publish the target.
+		mClock = new Clock(position, clock.duration, SystemClock.elapsedRealtime(), clock.playing);
 	}
 
 	@Override
@@ -971,6 +1328,51 @@ public final class PlaybackService extends Service implements Handler.Callback,
 		broadcastReplaceSong(delta, song);
 	}
 
+	public void libraryIndexChanged(LibraryIndex index)
+	{
+		// The index is only replaced once changes to the MediaStore have
+		// settled, but drop any update we have not handled yet anyway.
+		mHandler.removeMessages(LIBRARY_CHANGED);
+		mHandler.sendMessage(mHandler.obtainMessage(LIBRARY_CHANGED, index));
+	}
+
+	/**
+	 * Apply the changes in the given library index to the timeline. The
+	 * player is only reloaded if the current song was removed or modified.
+	 *
+	 * @param index The new library index.
+	 */
+	private void updateLibrary(LibraryIndex index)
+	{
+		if ((mState & FLAG_NO_MEDIA) != 0) {
+			// Songs may have just become available.
+			if (index.getCount() != 0)
+				setCurrentSong(0, false);
+			return;
+		}
+
+		if (mMediaPlayer == null)
+			return;
+
+		Song oldSong = mTimeline.getSong(0);
+		if (!mTimeline.updateSongs(index))
+			return;
+
+		int position = 0;
+		if (oldSong != null && oldSong.id == Song.getId(mTimeline.getSong(0))) {
+			// The file of the current song was modified; resume at the same
+			// position.
+			position = mMediaPlayer.getCurrentPosition();
+		}
+
+		setCurrentSong(0, false);
+
+		if (position != 0) {
+			mMediaPlayer.seekTo(position);
+			updateClock();
+		}
+	}
+
 	/**
 	 * Remove the song with the given id from the timeline and advance to the
 	 * next song if the given song is currently playing.
@@ -980,9 +1382,7 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	 */
 	public void removeSong(long id)
 	{
-		boolean shouldAdvance = mTimeline.removeSong(id);
-		if (shouldAdvance)
-			setCurrentSong(0);
+		mHandler.sendMessage(mHandler.obtainMessage(REMOVE_SONG, Long.valueOf(id)));
 	}
 
 	/**
@@ -993,6 +1393,15 @@ public final class PlaybackService extends Service implements Handler.Callback,
 	 * volume.
 	 */
 	public void userActionTriggered()
+	{
+		mHandler.sendEmptyMessage(USER_ACTION);
+	}
+
+	/**
+	 * Reset the idle timeout and abort a fade out in progress. Must be
+	 * called on the service thread.
+	 */
+	private void resetIdleTimeout()
 	{
 		mHandler.removeMessages(FADE_OUT);
 		mHandler.removeMessages(IDLE_TIMEOUT);
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Prepares the songs following the current song in a SongTimeline so that
+ * skipping to them is instant. Work is done in three stages on a low-priority
+ * thread: the metadata of the upcoming songs is queried, their covers are
+ * loaded with Song.prefetchCover(), and the beginning of each audio file is read
+ * so that the OS page cache holds it when playback starts.
+ */
+public final class Prefetcher implements Handler.Callback {
+	/**
+	 * The default number of songs to prefetch.
+	 */
+	public static final int DEFAULT_COUNT = 2;
+	/**
+	 * The default time budget for the cover and audio stages, in
+	 * milliseconds.
+	 */
+	public static final int DEFAULT_BUDGET = 250;
+	/**
+	 * The number of bytes at the beginning of each audio file to read.
+	 */
+	private static final int READ_AHEAD_SIZE = 128 * 1024;
+
+	private Handler mHandler;
+	/**
+	 * The timeline to prefetch songs from.
+	 */
+	private SongTimeline mTimeline;
+	/**
+	 * The number of songs after the current song to prefetch.
+	 */
+	private int mCount = DEFAULT_COUNT;
+	/**
+	 * The maximum time, in milliseconds, that the cover and audio stages may
+	 * each take in one prefetch pass. Songs that do not fit in the budget
+	 * are skipped. The metadata stage is a single query.
+	 */
+	private int mBudget = DEFAULT_BUDGET;
+	/**
+	 * Buffer used to read the beginning of the audio files. Only accessed on
+	 * the prefetch thread.
+	 */
+	private byte[] mReadBuffer;
+
+	/**
+	 * Create a Prefetcher. Work is done on the application's background
+	 * worker thread.
+	 *
+	 * @param timeline The timeline to prefetch songs from.
+	 */
+	public Prefetcher(SongTimeline timeline)
+	{
+		mTimeline = timeline;
+		mHandler = new Handler(ContextApplication.getWorkerLooper(ContextApplication.PRIORITY_BACKGROUND), this);
+	}
+
+	/**
+	 * Cancel any pending work. The Prefetcher may not be used afterwards.
+	 */
+	public void quit()
+	{
+		mHandler.removeCallbacksAndMessages(null);
+	}
+
+	/**
+	 * Set the number of songs after the current song to prefetch.
+	 */
+	public void setCount(int count)
+	{
+		mCount = Math.max(0, Math.min(count, Song.PREFETCH_CACHE_SIZE));
+	}
+
+	/**
+	 * Set the maximum time, in milliseconds, the cover and audio stages may
+	 * each take in one pass.
+	 */
+	public void setBudget(int budget)
+	{
+		mBudget = budget;
+	}
+
+	/**
+	 * Prefetch the songs following the current song in the background. Any
+	 * pending pass is replaced by this one.
+	 */
+	public void prefetch()
+	{
+		mHandler.removeMessages(MSG_PREFETCH);
+		mHandler.sendEmptyMessage(MSG_PREFETCH);
+	}
+
+	/**
+	 * Query the metadata for the next <code>count</code> songs.
+	 *
+	 * @return The songs found, with null elements where no song is known
+	 * yet.
+	 */
+	private Song[] fetchMetadata(int count)
+	{
+		// Peek rather than calling getSong, which may add random songs to
+		// the timeline and only applies repeat to the next song.
+		Song[] songs = mTimeline.peekSongs(count);
+		Song.queryAll(Arrays.asList(songs));
+		return songs;
+	}
+
+	/**
+	 * Load the covers for the given songs in advance.
+	 */
+	private static void fetchCovers(Song[] songs, long deadline)
+	{
+		for (int i = 0; i != songs.length && SystemClock.uptimeMillis() < deadline; ++i) {
+			if (songs[i] != null)
+				songs[i].prefetchCover();
+		}
+	}
+
+	/**
+	 * Read the first READ_AHEAD_SIZE bytes of each song's file, discarding
+	 * the data, so the beginning of the file is in the OS page cache.
+	 */
+	private void fetchAudio(Song[] songs, long deadline)
+	{
+		if (mReadBuffer == null)
+			mReadBuffer = new byte[16 * 1024];
+		byte[] buffer = mReadBuffer;
+
+		for (int i = 0; i != songs.length; ++i) {
+			Song song = songs[i];
+			if (song == null || song.path == null)
+				continue;
+
+			try {
+				FileInputStream in = new FileInputStream(song.path);
+				try {
+					int total = 0;
+					int read;
+					while (total < READ_AHEAD_SIZE && (read = in.read(buffer)) != -1) {
+						total += read;
+						if (SystemClock.uptimeMillis() >= deadline)
+							return;
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.w("VanillaMusic", "Failed to read ahead " + song.path, e);
+			}
+		}
+	}
+
+	/**
+	 * Run a prefetch pass.
+	 */
+	private static final int MSG_PREFETCH = 0;
+
+	public boolean handleMessage(Message message)
+	{
+		switch (message.what) {
+		case MSG_PREFETCH: {
+			int count = mCount;
+			int budget = mBudget;
+			if (count == 0)
+				break;
+
+			Song[] songs = fetchMetadata(count);
+			fetchCovers(songs, SystemClock.uptimeMillis() + budget);
+			fetchAudio(songs, SystemClock.uptimeMillis() + budget);
+			break;
+		}
+		default:
+			return false;
+		}
+
+		return true;
+	}
+}
@@ -36,7 +36,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Represents a Song backed by the MediaStore. Includes basic metadata and
@@ -48,20 +50,102 @@ public class Song implements Parcelable {
 	 */
 	public static final int FLAG_RANDOM = 0x1;
 
+	/**
+	 * Dictionary of artist names. Songs hold the instance of their artist
+	 * name from this dictionary, so a queue full of songs by the same artist
+	 * does not hold a copy of the name for each song.
+	 */
+	public static final StringDictionary ARTIST_NAMES = new StringDictionary();
+	/**
+	 * Dictionary of album names.
+	 *
+	 * @see Song#ARTIST_NAMES
+	 */
+	public static final StringDictionary ALBUM_NAMES = new StringDictionary();
+
+	/**
+	 * The number of covers kept in the cover cache.
+	 */
+	private static final int COVER_CACHE_SIZE = 10;
 	/**
 	 * A cache of covers that have been loaded with getCover().
 	 */
-	private static final Cache<Bitmap> mCoverCache = new Cache<Bitmap>(10);
+	private static final Cache<Bitmap> mCoverCache = new Cache<Bitmap>(COVER_CACHE_SIZE);
+	/**
+	 * The number of covers kept in the prefetched cover cache.
+	 */
+	public static final int PREFETCH_CACHE_SIZE = 8;
+	/**
+	 * Covers loaded with prefetchCover() that have not been returned by
+	 * getCover() yet. These are kept apart from mCoverCache, which recycles
+	 * the covers it discards, so that prefetching never discards a cover
+	 * that may be being drawn. Covers in this cache have not been handed
+	 * out, so they are recycled when discarded. Guarded by mCoverCache.
+	 */
+	private static final Cache<Bitmap> mPrefetchCache = new Cache<Bitmap>(PREFETCH_CACHE_SIZE);
 
 	/**
-	 * A cache of randomly selected songs.
+	 * The number of random songs fetched from the MediaStore at once.
+	 */
+	private static final int RANDOM_POPULATION_SIZE = 20;
+	/**
+	 * Randomly selected songs that have been fetched but not yet returned by
+	 * randomSong.
 	 */
-	private static ArrayList<Song> mRandomSongs = new ArrayList<Song>();
-	private static ArrayList<Long> mRandomSongIds = new ArrayList<Long>();
-	private static int mRandomSongIdx = -1;
-	private static int mRandomSongLastPopulatedIdx = -1;
+	private static final ArrayList<Song> mRandomSongs = new ArrayList<Song>(RANDOM_POPULATION_SIZE);
+	/**
+	 * A range of MediaStore ids that random songs are taken from, in the order
+	 * given by a random permutation of the range.
+	 */
+	private static final class RandomSegment {
+		/**
+		 * The first id in the range.
+		 */
+		public long start;
+		/**
+		 * The number of ids in the range.
+		 */
+		public int size;
+		/**
+		 * The key of the permutation.
+		 *
+		 * @see Permutation
+		 */
+		public long key;
+		/**
+		 * The index in the permutation of the next id to try.
+		 */
+		public int next;
+	}
+	/**
+	 * The ranges of ids that have not been fully visited in the current
+	 * cycle through all songs. The first segment covers all the ids that
+	 * existed when the cycle started; a segment is appended for the ids of the
+	 * songs that have been added since, so they are mixed into the songs that
+	 * have not been played yet without disturbing the order of the rest.
+	 * Songs that have been removed are simply skipped.
+	 */
+	private static final ArrayList<RandomSegment> mRandomSegments = new ArrayList<RandomSegment>();
+	/**
+	 * The highest id covered by mRandomSegments.
+	 */
+	private static long mRandomMaxId;
+	/**
+	 * The proportion of ids in mRandomSegments that belong to songs, used to
+	 * estimate how many ids must be tried to find a batch of songs.
+	 */
+	private static float mRandomDensity = 1.0f;
+	/**
+	 * True if the MediaStore has changed since mRandomSegments and
+	 * mRandomSongs were last brought up to date.
+	 */
+	private static boolean mRandomStale;
 	private static int mMediaStoreSongCountCache = -1;
-	private static final int mRandomSongLastPopulationSize = 20;
+	/**
+	 * The maximum number of ids to bind in a single IN (...) query. This is
+	 * the default value of SQLITE_MAX_VARIABLE_NUMBER.
+	 */
+	private static final int MAX_QUERY_VARIABLES = 999;
 
 	private static final String[] FILLED_PROJECTION = {
 		MediaStore.Audio.Media._ID,
@@ -91,11 +175,11 @@ public class Song implements Parcelable {
 	 */
 	public String title;
 	/**
-	 * Album name
+	 * Album name. This is the instance held by ALBUM_NAMES.
 	 */
 	public String album;
 	/**
-	 * Artist name
+	 * Artist name. This is the instance held by ARTIST_NAMES.
 	 */
 	public String artist;
 
@@ -106,19 +190,61 @@ public class Song implements Parcelable {
 
 	public static void onMediaStoreContentsChanged()
 	{
-		mMediaStoreSongCountCache = -1;
-		mRandomSongIdx = -1;
+		synchronized (mRandomSongs) {
+			mMediaStoreSongCountCache = -1;
+			mRandomStale = true;
+		}
+	}
+
+	/**
+	 * Update the caches after the library index has been replaced. The
+	 * covers of songs that were modified or removed are discarded and the
+	 * random songs are brought up to date from the new index.
+	 */
+	public static void onLibraryIndexChanged(LibraryIndex index)
+	{
+		long[] changed = index.getChangedIds();
+		long[] removed = index.getRemovedIds();
+		if (changed != null) {
+			synchronized (mCoverCache) {
+				for (int i = changed.length; --i != -1; )
+					discardCover(changed[i]);
+				for (int i = removed.length; --i != -1; )
+					discardCover(removed[i]);
+			}
+		}
+
+		onMediaStoreContentsChanged();
 	}
 	
+	/**
+	 * Remove the cover of the song with the given id from the cover caches.
+	 * Must be called with the mCoverCache lock held.
+	 */
+	private static void discardCover(long id)
+	{
+		mCoverCache.remove(id);
+		Bitmap prefetched = mPrefetchCache.remove(id);
+		if (prefetched != null)
+			prefetched.recycle();
+	}
+
 	public static int getMediaStoreSongCount()
 	{
+		LibraryIndex index = LibraryIndex.get();
+		if (index != null)
+			return index.getCount();
+
 		if (mMediaStoreSongCountCache == -1) {
 			ContentResolver resolver = ContextApplication.getContext().getContentResolver();
 			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
 			String selection = MediaStore.Audio.Media.IS_MUSIC + "!=0";
 			Cursor cursor = resolver.query(media, new String[] { MediaStore.Audio.Media._ID }, selection, null, null);
+			if (cursor == null)
+				return 0;
 	
 			mMediaStoreSongCountCache = cursor.getCount(); 
+			cursor.close();
 		}
 		
 		return mMediaStoreSongCountCache;
@@ -136,90 +262,207 @@ public class Song implements Parcelable {
 	/**
 	 * Returns a song randomly selected from all the songs in the Android
 	 * MediaStore.
+	 *
+	 * Songs are taken from random permutations of ranges of MediaStore ids,
+	 * so no song is repeated until every song has been returned. Only the
+	 * keys of the permutations and one batch of songs are kept in memory.
 	 */
 	public static Song randomSong()
 	{
-		if (mRandomSongIdx == -1 || mRandomSongIdx == mRandomSongIds.size())
-		{
-			mRandomSongIds.clear();
-			
-			int mediaStoreSongCount = getMediaStoreSongCount();
-			mRandomSongIds.ensureCapacity(mediaStoreSongCount);
-			
-			ContentResolver resolver = ContextApplication.getContext().getContentResolver();
-			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-			String selection = MediaStore.Audio.Media.IS_MUSIC + "!=0";
-			Cursor cursor = resolver.query(media, new String[] { MediaStore.Audio.Media._ID }, selection, null, null);
-	
-			if (cursor != null) {
-				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-					mRandomSongIds.add(new Long(cursor.getLong(0)));
-				}
+		synchronized (mRandomSongs) {
+			ArrayList<Song> songs = mRandomSongs;
 
-				Collections.shuffle(mRandomSongIds);
-				
-				cursor.close();
+			if (mRandomStale) {
+				updateRandomSongs();
+				mRandomStale = false;
 			}
-			else {
-				return null;
+
+			boolean restarted = false;
+			while (songs.isEmpty()) {
+				if (mRandomSegments.isEmpty()) {
+					// Every song has been visited (or nothing has been
+					// visited yet); begin a new cycle.
+					if (restarted)
+						return null;
+					restarted = true;
+
+					mRandomMaxId = 0;
+					if (!addRandomSegment())
+						return null;
+					mRandomDensity = Math.min(1.0f, (float)getMediaStoreSongCount() / mRandomSegments.get(0).size);
+				}
+
+				populateRandomSongs();
 			}
-			
-			mRandomSongIdx = 0;
-			mRandomSongLastPopulatedIdx = -1;
+
+			return songs.remove(songs.size() - 1);
 		}
-		
-		if (mRandomSongIdx > mRandomSongLastPopulatedIdx) {
-			mRandomSongs.clear();
-			mRandomSongs.ensureCapacity(mRandomSongLastPopulationSize);
-			
+	}
+
+	/**
+	 * Append a RandomSegment covering the ids of the songs above
+	 * mRandomMaxId, then raise mRandomMaxId to the highest id.
+	 *
+	 * @return True if a segment was added.
+	 */
+	private static boolean addRandomSegment()
+	{
+		long maxId = -1;
+
+		LibraryIndex index = LibraryIndex.get();
+		if (index != null) {
+			if (index.getMaxId() > mRandomMaxId)
+				maxId = index.getMaxId();
+		} else {
 			ContentResolver resolver = ContextApplication.getContext().getContentResolver();
 			Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+			String selection = MediaStore.Audio.Media.IS_MUSIC + "!=0 AND " + MediaStore.Audio.Media._ID + '>' + mRandomMaxId;
+			String sort = MediaStore.Audio.Media._ID + " DESC";
+			Cursor cursor = resolver.query(media, new String[] { MediaStore.Audio.Media._ID }, selection, null, sort);
+			if (cursor == null)
+				return false;
+
+			if (cursor.moveToFirst())
+				maxId = cursor.getLong(0);
+			cursor.close();
+		}
 
-			List<Long> selectedIds = mRandomSongIds.subList(mRandomSongIdx, mRandomSongIdx + mRandomSongLastPopulationSize);
-			
-			StringBuilder selection = new StringBuilder("_ID IN (");
-
-			boolean first = true;
-			for (Long id : selectedIds) {
-				if (!first)
-					selection.append(",");
-				
-				first = false;
-				
-				selection.append(id.toString());
+		if (maxId == -1)
+			return false;
+
+		RandomSegment segment = new RandomSegment();
+		segment.start = mRandomMaxId + 1;
+		segment.size = (int)(maxId - mRandomMaxId);
+		segment.key = ContextApplication.getRandom().nextLong();
+		mRandomSegments.add(segment);
+		mRandomMaxId = maxId;
+		return true;
+	}
+
+	/**
+	 * Bring the random song state up to date after the MediaStore has
+	 * changed: songs added since the last update are mixed into the songs
+	 * not yet visited in this cycle and fetched songs that have been removed
+	 * are dropped. The order of the songs already visited is unaffected.
+	 */
+	private static void updateRandomSongs()
+	{
+		if (!mRandomSegments.isEmpty())
+			addRandomSegment();
+
+		ArrayList<Song> songs = mRandomSongs;
+		int count = songs.size();
+		if (count == 0)
+			return;
+
+		LibraryIndex index = LibraryIndex.get();
+		if (index != null) {
+			for (int i = count; --i != -1; ) {
+				// Pick up any changes to the metadata as well
+				if (!index.fill(songs.get(i)))
+					songs.remove(i);
 			}
+			return;
+		}
+
+		long[] ids = new long[count];
+		for (int i = 0; i != count; ++i)
+			ids[i] = songs.get(i).id;
 
-			selection.append(")");
-			
-			Cursor cursor = resolver.query(media, FILLED_PROJECTION, selection.toString(), null, null);
-			
-			if (cursor == null) {
-				mRandomSongIdx = -1;
-				return null;
+		Cursor cursor = queryIds(ids, 0, count, MediaStore.Audio.Media.IS_MUSIC + "!=0");
+		if (cursor == null)
+			return;
+
+		HashMap<Long, Song> current = new HashMap<Long, Song>();
+		for (int i = 0; i != count; ++i)
+			current.put(ids[i], songs.get(i));
+		songs.clear();
+
+		while (cursor.moveToNext()) {
+			Song song = current.get(cursor.getLong(0));
+			if (song != null) {
+				// Pick up any changes to the metadata as well
+				song.populate(cursor);
+				songs.add(song);
 			}
-			
-			long count = cursor.getCount();
-			if (count > 0) {
-				assert(count <= mRandomSongLastPopulationSize);
-				
-				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-					Song newSong = new Song(-1);
-					newSong.populate(cursor);
-					newSong.flags |= FLAG_RANDOM;
-					mRandomSongs.add(newSong);
-				}
+		}
+
+		cursor.close();
+	}
+
+	/**
+	 * Try the next batch of ids from mRandomSegments, adding the ids that
+	 * belong to songs to mRandomSongs. Exhausted segments are removed.
+	 */
+	private static void populateRandomSongs()
+	{
+		ArrayList<RandomSegment> segments = mRandomSegments;
+		Random random = ContextApplication.getRandom();
+
+		int remaining = 0;
+		for (int i = segments.size(); --i != -1; ) {
+			RandomSegment segment = segments.get(i);
+			remaining += segment.size - segment.next;
+		}
+
+		int count = (int)Math.ceil(RANDOM_POPULATION_SIZE / Math.max(mRandomDensity, 0.001f));
+		count = Math.min(Math.min(count, MAX_QUERY_VARIABLES), remaining);
+
+		// Draw from each segment in proportion to the ids it has left, so
+		// ids from segments added later are spread evenly through the rest
+		// of the cycle.
+		long[] ids = new long[count];
+		for (int i = 0; i != count; ++i) {
+			int r = random.nextInt(remaining);
+			RandomSegment segment = null;
+			for (int j = 0; ; ++j) {
+				segment = segments.get(j);
+				r -= segment.size - segment.next;
+				if (r < 0)
+					break;
+			}
+
+			ids[i] = segment.start + Permutation.get(segment.key, segment.size, segment.next);
+			++segment.next;
+			--remaining;
+		}
+
+		for (int i = segments.size(); --i != -1; ) {
+			RandomSegment segment = segments.get(i);
+			if (segment.next == segment.size)
+				segments.remove(i);
+		}
+
+		if (count == 0)
+			return;
+
+		ArrayList<Song> songs = mRandomSongs;
+		LibraryIndex index = LibraryIndex.get();
+		if (index != null) {
+			for (int i = 0; i != count; ++i) {
+				Song song = new Song(ids[i], FLAG_RANDOM);
+				if (index.fill(song))
+					songs.add(song);
+			}
+		} else {
+			Cursor cursor = queryIds(ids, 0, count, MediaStore.Audio.Media.IS_MUSIC + "!=0");
+			if (cursor == null)
+				return;
+
+			while (cursor.moveToNext()) {
+				Song song = new Song(-1, FLAG_RANDOM);
+				song.populate(cursor);
+				songs.add(song);
 			}
-			
+
 			cursor.close();
-			
-			mRandomSongLastPopulatedIdx = mRandomSongIdx + mRandomSongLastPopulationSize;  
 		}
 
-		Song result = mRandomSongs.get(mRandomSongIdx % mRandomSongLastPopulationSize);
-		
-		++mRandomSongIdx;
-		
-		return result;
+		// Adjust the estimate to what we actually found
+		mRandomDensity = (mRandomDensity + (float)songs.size() / count) / 2;
+
+		// The songs are returned in MediaStore order
+		Collections.shuffle(songs, random);
 	}
 
 	/**
@@ -251,8 +494,8 @@ public class Song implements Parcelable {
 		id = cursor.getLong(0);
 		path = cursor.getString(1);
 		title = cursor.getString(2);
-		album = cursor.getString(3);
-		artist = cursor.getString(4);
+		album = ALBUM_NAMES.intern(cursor.getString(3));
+		artist = ARTIST_NAMES.intern(cursor.getString(4));
 		albumId = cursor.getLong(5);
 	}
 
@@ -290,6 +533,10 @@ public class Song implements Parcelable {
 		if (id == -1)
 			return false;
 
+		LibraryIndex index = LibraryIndex.get();
+		if (!force && index != null && index.fill(this))
+			return true;
+
 		ContentResolver resolver = ContextApplication.getContext().getContentResolver();
 		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
 		String selection = MediaStore.Audio.Media._ID + '=' + id;
@@ -306,6 +553,99 @@ public class Song implements Parcelable {
 		return id != -1;
 	}
 
+	/**
+	 * Fill the fields of all the unpopulated songs in the given list, using
+	 * as few MediaStore queries as possible. Songs that could not be found
+	 * are left untouched; call query on them to handle that case.
+	 *
+	 * @param songs The songs to populate. May contain null elements and
+	 * songs that have already been populated.
+	 */
+	public static void queryAll(List<Song> songs)
+	{
+		LibraryIndex index = LibraryIndex.get();
+		HashMap<Long, Song> pending = new HashMap<Long, Song>();
+		for (int i = songs.size(); --i != -1; ) {
+			Song song = songs.get(i);
+			if (song != null && song.path == null && song.id != -1) {
+				if (index == null || !index.fill(song))
+					pending.put(song.id, song);
+			}
+		}
+
+		int count = pending.size();
+		if (count == 0)
+			return;
+
+		long[] ids = new long[count];
+		int j = 0;
+		for (Long id : pending.keySet())
+			ids[j++] = id;
+
+		for (int start = 0; start < count; start += MAX_QUERY_VARIABLES) {
+			Cursor cursor = queryIds(ids, start, Math.min(MAX_QUERY_VARIABLES, count - start), null);
+			if (cursor == null)
+				return;
+
+			while (cursor.moveToNext()) {
+				Song song = pending.get(cursor.getLong(0));
+				if (song != null)
+					song.populate(cursor);
+			}
+
+			cursor.close();
+		}
+
+		// The timeline may contain several Song objects referring to the same
+		// media; only one of each was populated above.
+		for (int i = songs.size(); --i != -1; ) {
+			Song song = songs.get(i);
+			if (song == null || song.path != null)
+				continue;
+			Song other = pending.get(song.id);
+			if (other != null && other.path != null) {
+				int flags = song.flags;
+				song.copy(other);
+				song.flags = flags;
+			}
+		}
+	}
+
+	/**
+	 * Query the MediaStore for the songs with the given ids, using
+	 * FILLED_PROJECTION.
+	 *
+	 * @param ids An array containing the ids.
+	 * @param start The index of the first id to use.
+	 * @param size The number of ids to use. Must not be more than
+	 * MAX_QUERY_VARIABLES.
+	 * @param selection An extra selection the songs must match, or null.
+	 * @return The cursor, or null if the query failed.
+	 */
+	private static Cursor queryIds(long[] ids, int start, int size, String selection)
+	{
+		ContentResolver resolver = ContextApplication.getContext().getContentResolver();
+		Uri media = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+
+		String[] selectionArgs = new String[size];
+		StringBuilder builder = new StringBuilder();
+		if (selection != null) {
+			builder.append(selection);
+			builder.append(" AND ");
+		}
+		builder.append(MediaStore.Audio.Media._ID);
+		builder.append(" IN (");
+		for (int i = 0; i != size; ++i) {
+			if (i != 0)
+				builder.append(',');
+			builder.append('?');
+			selectionArgs[i] = Long.toString(ids[start + i]);
+		}
+		builder.append(')');
+
+		return resolver.query(media, FILLED_PROJECTION, builder.toString(), selectionArgs, null);
+	}
+
 	/**
 	 * Get the id of the given song.
 	 *
@@ -337,8 +677,8 @@ public class Song implements Parcelable {
 		albumId = in.readLong();
 		path = in.readString();
 		title = in.readString();
-		album = in.readString();
-		artist = in.readString();
+		album = ALBUM_NAMES.intern(in.readString());
+		artist = ARTIST_NAMES.intern(in.readString());
 	}
 
 	public void writeToParcel(Parcel out, int flags)
@@ -374,15 +714,83 @@ public class Song implements Parcelable {
 			return null;
 
 		// Query the cache for the cover
-		Bitmap cover = mCoverCache.get(id);
+		Bitmap cover;
+		synchronized (mCoverCache) {
+			cover = mCoverCache.get(id);
+			if (cover == null) {
+				cover = mPrefetchCache.remove(id);
+				if (cover != null) {
+					Bitmap deletedCover = mCoverCache.put(id, cover);
+					if (deletedCover != null)
+						deletedCover.recycle();
+				}
+			}
+		}
 		if (cover != null)
 			return cover;
 
+		cover = loadCover();
+
+		synchronized (mCoverCache) {
+			// Another thread may have loaded the cover while we were.
+			Bitmap cached = mCoverCache.get(id);
+			if (cached != null) {
+				if (cover != null)
+					cover.recycle();
+				return cached;
+			}
+
+			Bitmap deletedCover = mCoverCache.put(id, cover);
+			if (deletedCover != null)
+				deletedCover.recycle();
+		}
+
+		return cover;
+	}
+
+	/**
+	 * Load the album art for this song in advance, so that a later call to
+	 * getCover() returns it at once. Unlike getCover(), this never discards
+	 * a cover that has been returned by getCover().
+	 */
+	public void prefetchCover()
+	{
+		if (id == -1)
+			return;
+
+		synchronized (mCoverCache) {
+			if (mCoverCache.get(id) != null || mPrefetchCache.get(id) != null)
+				return;
+		}
+
+		Bitmap cover = loadCover();
+		if (cover == null)
+			return;
+
+		synchronized (mCoverCache) {
+			if (mCoverCache.get(id) != null || mPrefetchCache.get(id) != null) {
+				cover.recycle();
+				return;
+			}
+
+			Bitmap deletedCover = mPrefetchCache.put(id, cover);
+			if (deletedCover != null)
+				deletedCover.recycle();
+		}
+	}
+
+	/**
+	 * Read the album art for this song, bypassing the caches.
+	 *
+	 * @return The album art or null if no album art could be found
+	 */
+	private Bitmap loadCover()
+	{
 		Context context = ContextApplication.getContext();
 		ContentResolver res = context.getContentResolver();
 
 		// Query the MediaStore content provider
-		cover = getCoverFromMediaFile(res);
+		Bitmap cover = getCoverFromMediaFile(res);
 
 		// If that fails, try using MediaScanner directly
 		if (cover == null)
@@ -392,10 +800,6 @@ public class Song implements Parcelable {
 		if (cover == null)
 			cover = getCoverFromMediaStoreCache(res);
 
-		Bitmap deletedCover = mCoverCache.put(id, cover);
-		if (deletedCover != null)
-			deletedCover.recycle();
-
 		return cover;
 	}
 
@@ -29,7 +29,9 @@ import android.graphics.drawable.PaintDrawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
 import android.text.Editable;
@@ -54,7 +56,7 @@ import android.widget.TabHost;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class SongSelector extends PlaybackActivity implements AdapterView.OnItemClickListener, TextWatcher, TabHost.OnTabChangeListener, Filter.FilterListener {
+public class SongSelector extends PlaybackActivity implements AdapterView.OnItemClickListener, TextWatcher, TabHost.OnTabChangeListener, Filter.FilterListener, LibraryIndex.Callback {
 	/**
 	 * The number of tabs in the song selector.
 	 */
@@ -82,6 +84,11 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 
 	private long mLastActedId;
 
+	/**
+	 * Observer for the MediaStore, registered by MSG_INIT.
+	 */
+	private volatile Observer mObserver;
+
 	MediaAdapter getAdapter(int tab)
 	{
 		ListView list = (ListView)mTabHost.getTabContentView().getChildAt(tab);
@@ -132,9 +139,37 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 			updateLimiterViews();
 		}
 
+		// Only the visible tab is queried now. The others are queried in the
+		// background, one at a time, once the UI has nothing else to do;
+		// or immediately if they are shown first.
+		getAdapter(mTabHost.getCurrentTab()).load();
+		Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+			public boolean queueIdle()
+			{
+				for (int i = 0; i != TAB_COUNT; ++i) {
+					MediaAdapter adapter = getAdapter(i);
+					if (!adapter.isLoaded()) {
+						adapter.loadInBackground();
+						return true;
+					}
+				}
+				return false;
+			}
+		});
+
 		mHandler.sendEmptyMessage(MSG_INIT);
 	}
 
+	@Override
+	public void onDestroy()
+	{
+		LibraryIndex.removeCallback(this);
+		// The handler's thread outlives us, so the observer must not.
+		if (mObserver != null)
+			getContentResolver().unregisterContentObserver(mObserver);
+		super.onDestroy();
+	}
+
 	@Override
 	public void onStart()
 	{
@@ -273,13 +308,19 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 		getAdapter(limiter.length).setLimiter(limiter, false);
 		mTabHost.setCurrentTab(limiter.length);
 
+		// With the library index, limiting is an in-memory slice, so there
+		// is no need to defer the other tabs.
+		boolean async = LibraryIndex.get() == null;
 		for (int i = limiter.length + 1; i < LIMIT_COUNT; ++i)
-			getAdapter(i).setLimiter(limiter, true);
+			getAdapter(i).setLimiter(limiter, async);
 	}
 
 	public void onItemClick(AdapterView<?> list, View view, int pos, long id)
 	{
 		MediaAdapter.MediaView mediaView = (MediaAdapter.MediaView)view;
+		// Rows that are still loading have no id to act on.
+		if (!mediaView.hasMedia())
+			return;
 		if (mediaView.isExpanderPressed())
 			expand(mediaView);
 		else if (id == mLastActedId)
@@ -340,6 +381,10 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 
 	public void onTabChanged(String tabId)
 	{
+		// Tabs are added before their adapters are set up.
+		MediaAdapter adapter = getAdapter(mTabHost.getCurrentTab());
+		if (adapter != null)
+			adapter.load();
 		updateLimiterViews();
 	}
 
@@ -389,6 +434,8 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 	public void onCreateContextMenu(ContextMenu menu, View listView, ContextMenu.ContextMenuInfo absInfo)
 	{
 		MediaAdapter.MediaView view = (MediaAdapter.MediaView)((AdapterView.AdapterContextMenuInfo)absInfo).targetView;
+		if (!view.hasMedia())
+			return;
 		int type = view.getMediaType();
 		int id = (int)view.getMediaId();
 
@@ -598,8 +645,9 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 		switch (message.what) {
 		case MSG_INIT:
 			ContentResolver resolver = getContentResolver();
-			Observer observer = new Observer(mHandler);
-			resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, observer);
+			mObserver = new Observer(mHandler);
+			resolver.registerContentObserver(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+			LibraryIndex.addCallback(this);
 			break;
 		case MSG_NEW_PLAYLIST: {
 			NewPlaylistDialog dialog = (NewPlaylistDialog)message.obj;
@@ -634,16 +682,32 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 		@Override
 		public void onChange(boolean selfChange)
 		{
-			runOnUiThread(new Runnable() {
-				public void run()
-				{
-					for (int i = 0; i != TAB_COUNT; ++i)
-						getAdapter(i).requery();
-				}
-			});
+			// The library index will be reloaded and will call
+			// libraryIndexChanged when it is done.
+			if (LibraryIndex.get() == null)
+				requeryAdapters();
 		}
 	};
 
+	public void libraryIndexChanged(LibraryIndex index)
+	{
+		requeryAdapters();
+	}
+
+	/**
+	 * Requery all the adapters on the UI thread.
+	 */
+	private void requeryAdapters()
+	{
+		runOnUiThread(new Runnable() {
+			public void run()
+			{
+				for (int i = 0; i != TAB_COUNT; ++i)
+					getAdapter(i).requery();
+			}
+		});
+	}
+
 	private void setSearchBoxVisible(boolean visible)
 	{
 		mSearchBoxVisible = visible;
@@ -690,11 +754,11 @@ public class SongSelector extends PlaybackActivity implements AdapterView.OnItem
 	}
 
 	@Override
-	public void receive(Intent intent)
+	public void onStateChanged(int state, Song song, int position)
 	{
-		super.receive(intent);
+		super.onStateChanged(state, song, position);
 
-		if (mControls != null && PlaybackService.EVENT_CHANGED.equals(intent.getAction()))
-			onSongChange((Song)intent.getParcelableExtra("song"));
+		if (mControls != null)
+			onSongChange(song);
 	}
 }
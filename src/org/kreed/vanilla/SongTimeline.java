@@ -23,10 +23,12 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Random;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
 import android.util.Log;
 
 /**
@@ -44,6 +46,21 @@ public final class SongTimeline {
 	 * format.
 	 */
 	private static final long STATE_FILE_MAGIC = 0x8a9d3f2fca33L;
+	/**
+	 * The number of songs before the current song that will be populated
+	 * together by hydrate.
+	 */
+	private static final int HYDRATE_BEHIND = 1;
+	/**
+	 * The number of songs after the current song that will be populated
+	 * together by hydrate.
+	 */
+	private static final int HYDRATE_AHEAD = 10;
+	/**
+	 * The number of songs streamed from a cursor by streamChosenSongs that
+	 * are added to the timeline at once.
+	 */
+	private static final int STREAM_BATCH_SIZE = 100;
 
 	/**
 	 * All the songs currently contained in the timeline. Each Song object
@@ -56,7 +73,7 @@ public final class SongTimeline {
 	private int mCurrentPos;
 	/**
 	 * The distance from mCurrentPos at which songs will be enqueued by
-	 * chooseSongs. If 0, then songs will be enqueued at the position
+	 * addChosenSongs. If 0, then songs will be enqueued at the position
 	 * immediately following the current song. If 1, there will be one
 	 * position between them, etc.
 	 */
@@ -66,15 +83,84 @@ public final class SongTimeline {
 	 */
 	private int mRepeatStart = -1;
 	/**
-	 * The songs that will be repeated on the next repeat. We cache these so
-	 * that, if they need to be shuffled, they are only shuffled once.
+	 * The number of songs, starting at mRepeatStart, that are played in the
+	 * order given by the permutation with key mShuffleKey rather than in the
+	 * order they are stored in. 0 if no shuffled repeat is in progress.
+	 *
+	 * Shuffled repeats are handled this way so that each repeat is O(1)
+	 * rather than requiring the repeated songs to be copied and shuffled.
+	 */
+	private int mShuffleLength;
+	/**
+	 * The key of the permutation used for the current shuffled repeat.
+	 *
+	 * @see Permutation
+	 */
+	private long mShuffleKey;
+	/**
+	 * The key of the permutation that will be used for the next shuffled
+	 * repeat. We choose this in advance so that the next song may be
+	 * determined before the repeat actually happens.
 	 */
-	private ArrayList<Song> mRepeatedSongs;
+	private long mNextShuffleKey;
+	/**
+	 * True if mNextShuffleKey has been chosen.
+	 */
+	private boolean mHasNextShuffleKey;
 	/**
 	 * Whether shuffling is enabled. Shuffling will shuffle sets of songs
-	 * that are added with chooseSongs and shuffle sets of repeated songs.
+	 * that are added with addChosenSongs and shuffle sets of repeated songs.
 	 */
 	private boolean mShuffle;
+	/**
+	 * Incremented each time cancelChoosing is called. A stream of songs
+	 * started by streamChosenSongs stops, and its batches are not added, once
+	 * this no longer matches the value it had when the set was read.
+	 */
+	private volatile int mChooseGeneration;
+	/**
+	 * The position in the timeline at which the next batch of songs from
+	 * streamChosenSongs will be added.
+	 */
+	private int mStreamPos;
+
+	/**
+	 * A set of songs read by readChosenSongs. The ids are added to the
+	 * timeline at once by addChosenSongs; the rest of the set is read from
+	 * the cursor by streamChosenSongs.
+	 */
+	public static final class ChosenSongs {
+		/**
+		 * The ids of the songs to add at once.
+		 */
+		final long[] ids;
+		/**
+		 * The cursor holding the rest of the set, or null if the set is
+		 * complete. Closed by streamChosenSongs.
+		 */
+		final Cursor cursor;
+		/**
+		 * The position in the cursor of the song in ids.
+		 */
+		final int skip;
+		/**
+		 * Whether the songs in the cursor should be shuffled.
+		 */
+		final boolean shuffle;
+		/**
+		 * The value of mChooseGeneration when the set was read.
+		 */
+		final int generation;
+
+		ChosenSongs(long[] ids, Cursor cursor, int skip, boolean shuffle, int generation)
+		{
+			this.ids = ids;
+			this.cursor = cursor;
+			this.skip = skip;
+			this.shuffle = shuffle;
+			this.generation = generation;
+		}
+	}
 
 	public interface Callback {
 		/**
@@ -151,8 +237,10 @@ public final class SongTimeline {
 				int size = songs.size();
 				out.writeInt(size);
 
+				// Songs are saved in playback order, so the state of a
+				// shuffled repeat is not needed.
 				for (int i = 0; i != size; ++i) {
-					Song song = songs.get(i);
+					Song song = songs.get(mapPosition(i));
 					if (song == null) {
 						out.writeLong(-1);
 						out.writeInt(-1);
@@ -210,11 +298,16 @@ public final class SongTimeline {
 
 	/**
 	 * Set whether shuffling is enabled. Shuffling will shuffle sets of songs
-	 * that are added with chooseSongs and shuffle sets of repeated songs.
+	 * that are added with addChosenSongs and shuffle sets of repeated songs.
 	 */
 	public void setShuffle(boolean shuffle)
 	{
-		mShuffle = shuffle;
+		synchronized (this) {
+			// Keep the songs in a shuffled repeat in their current order
+			if (!shuffle)
+				applyShuffle();
+			mShuffle = shuffle;
+		}
 	}
 
 	/**
@@ -240,8 +333,9 @@ public final class SongTimeline {
 				// even if all of our songs were selected randomly.
 				getSong(0).flags &= ~Song.FLAG_RANDOM;
 			} else {
+				applyShuffle();
 				mRepeatStart = -1;
-				mRepeatedSongs = null;
+				mHasNextShuffleKey = false;
 			}
 
 			if (mCallback != null)
@@ -250,20 +344,50 @@ public final class SongTimeline {
 	}
 
 	/**
-	 * Retrieves a shuffled list of the songs to be repeated. This caches the
-	 * results so that the repeated songs are shuffled only once.
-	 *
-	 * @param end The position just after the last song to be included in the
-	 * repeated songs
+	 * Returns the key of the permutation to be used for the next shuffled
+	 * repeat, choosing one if necessary.
 	 */
-	private ArrayList<Song> getShuffledRepeatedSongs(int end)
+	private long getNextShuffleKey()
 	{
-		if (mRepeatedSongs == null) {
-			ArrayList<Song> songs = new ArrayList<Song>(mSongs.subList(mRepeatStart, end));
-			Collections.shuffle(songs, ContextApplication.getRandom());
-			mRepeatedSongs = songs;
+		if (!mHasNextShuffleKey) {
+			mNextShuffleKey = ContextApplication.getRandom().nextLong();
+			mHasNextShuffleKey = true;
 		}
-		return mRepeatedSongs;
+		return mNextShuffleKey;
+	}
+
+	/**
+	 * Returns the index in mSongs of the song that is played at the given
+	 * position, taking into account any shuffled repeat in progress.
+	 */
+	private int mapPosition(int pos)
+	{
+		int offset = pos - mRepeatStart;
+		if (offset >= 0 && offset < mShuffleLength)
+			return mRepeatStart + Permutation.get(mShuffleKey, mShuffleLength, offset);
+		return pos;
+	}
+
+	/**
+	 * Reorder the songs in a shuffled repeat in mSongs so that they are stored
+	 * in the order they are played, ending the shuffled repeat. This must be
+	 * called before the timeline is modified in a way that moves songs.
+	 */
+	private void applyShuffle()
+	{
+		int length = mShuffleLength;
+		if (length == 0)
+			return;
+
+		ArrayList<Song> timeline = mSongs;
+		int start = mRepeatStart;
+		Song[] songs = new Song[length];
+		for (int i = 0; i != length; ++i)
+			songs[i] = timeline.get(start + Permutation.get(mShuffleKey, length, i));
+		for (int i = 0; i != length; ++i)
+			timeline.set(start + i, songs[i]);
+
+		mShuffleLength = 0;
 	}
 
 	/**
@@ -300,7 +424,7 @@ public final class SongTimeline {
 				song = Song.randomSong();
 				timeline.add(song);
 			} else {
-				song = timeline.get(pos);
+				song = timeline.get(mapPosition(pos));
 			}
 
 			if (song != null && mRepeatStart != -1 && (song.flags & Song.FLAG_RANDOM) != 0) {
@@ -308,24 +432,24 @@ public final class SongTimeline {
 					// We have reached a non-user-selected song; this song will
 					// repeated in shiftCurrentSong so take alternative
 					// measures
-					if (mShuffle)
-						song = getShuffledRepeatedSongs(mCurrentPos + 1).get(0);
-					else
+					if (mShuffle) {
+						int length = mCurrentPos + 1 - mRepeatStart;
+						song = timeline.get(mRepeatStart + Permutation.get(getNextShuffleKey(), length, 0));
+					} else {
 						song = timeline.get(mRepeatStart);
+					}
 				} else if (delta == 0 && mRepeatStart < mCurrentPos) {
 					// We have just been set to a position after the repeat
 					// where a repeat is necessary. Rewind to the repeat
 					// start, shuffling if needed
 					if (mShuffle) {
-						int j = mCurrentPos;
-						ArrayList<Song> songs = getShuffledRepeatedSongs(j);
-						for (int i = songs.size(); --i != -1 && --j != -1; )
-							timeline.set(j, songs.get(i));
-						mRepeatedSongs = null;
+						mShuffleLength = mCurrentPos - mRepeatStart;
+						mShuffleKey = getNextShuffleKey();
+						mHasNextShuffleKey = false;
 					}
 
 					mCurrentPos = mRepeatStart;
-					song = timeline.get(mRepeatStart);
+					song = timeline.get(mapPosition(mRepeatStart));
 					if (mCallback != null)
 						mCallback.songReplaced(-1, getSong(-1));
 				}
@@ -334,7 +458,10 @@ public final class SongTimeline {
 
 		if (song == null)
 			return null;
-		
+
+		if (song.path == null)
+			hydrate();
+
 		if (!song.query(false)) {
 			song.copy(Song.randomSong());
 			
@@ -345,6 +472,76 @@ public final class SongTimeline {
 		return song;
 	}
 
+	/**
+	 * Returns the songs that will be played after the current song, in the
+	 * order they will be played, without modifying the timeline. Unlike
+	 * getSong, no random songs are added past the end of the timeline and
+	 * the songs are not queried.
+	 *
+	 * This does not modify the timeline, so it may be called from any
+	 * thread. The next pass of a shuffled repeat is only returned once the
+	 * key of its permutation has been chosen (by getSong), since the songs
+	 * that will play are not known before that.
+	 *
+	 * @param count The number of songs to return.
+	 * @return The songs, with null elements where the song is not known yet
+	 * (a random song that has not been chosen or was not found, a shuffled
+	 * repeat whose permutation has not been chosen, or a repeat beyond the
+	 * next pass).
+	 */
+	public Song[] peekSongs(int count)
+	{
+		Song[] songs = new Song[count];
+		ArrayList<Song> timeline = mSongs;
+
+		synchronized (this) {
+			int size = timeline.size();
+			int pos = mCurrentPos + 1;
+			int i = 0;
+
+			for (; i != count && pos < size; ++i, ++pos) {
+				Song song = timeline.get(mapPosition(pos));
+				// A random song after a repeat is replaced by the start of
+				// the repeat; see getSong.
+				if (song != null && mRepeatStart != -1 && (song.flags & Song.FLAG_RANDOM) != 0)
+					break;
+				songs[i] = song;
+			}
+
+			int length = pos - mRepeatStart;
+			if (i != count && mRepeatStart != -1 && length > 0 && (!mShuffle || mHasNextShuffleKey)) {
+				long key = mNextShuffleKey;
+				for (int j = 0; i != count && j != length; ++i, ++j) {
+					int offset = mShuffle ? Permutation.get(key, length, j) : j;
+					songs[i] = timeline.get(mRepeatStart + offset);
+				}
+			}
+		}
+
+		return songs;
+	}
+
+	/**
+	 * Populate all the unqueried songs near the current position with a
+	 * single batch of queries, rather than querying each song individually
+	 * as it is requested.
+	 */
+	private void hydrate()
+	{
+		ArrayList<Song> window;
+
+		synchronized (this) {
+			ArrayList<Song> timeline = mSongs;
+			int start = Math.max(0, mCurrentPos - HYDRATE_BEHIND);
+			int end = Math.min(timeline.size(), mCurrentPos + HYDRATE_AHEAD + 1);
+			if (start >= end)
+				return;
+			window = new ArrayList<Song>(timeline.subList(start, end));
+		}
+
+		Song.queryAll(window);
+	}
+
 	/**
 	 * Shift the current song by <code>delta</code> places.
 	 *
@@ -359,42 +556,99 @@ public final class SongTimeline {
 	}
 
 	/**
-	 * Add a set of songs to the song timeline. There are two modes: play and
-	 * enqueue. Play will place the set immediately after the current song. (It
-	 * is assumed that client code will shift the current position and play the
-	 * first song of the set after a call to play). Enqueue will place the set
-	 * after the last enqueued song or after the currently playing song if no
-	 * items have been enqueued since the last call to finishEnqueueing.
-	 *
-	 * If shuffling is enabled, songs will be in random order. Otherwise songs
+	 * Read a set of songs to add to the timeline with addChosenSongs. If
+	 * shuffling is enabled, songs will be in random order. Otherwise songs
 	 * will be ordered by album and then by track number.
 	 *
-	 * @param enqueue If true, enqueue the set. If false, play the set.
+	 * If the set must be read from the MediaStore, only its first song is
+	 * read before this method returns, so that playback may start
+	 * immediately, even for very large sets. The remaining songs are read by
+	 * streamChosenSongs, which should be called afterwards.
+	 *
+	 * This only reads the MediaStore and does not modify the timeline, so it
+	 * may be called on a background thread.
+	 *
 	 * @param type The type represented by the id. Must be one of the
 	 * MediaUtils.FIELD_* constants.
 	 * @param id The id of the element in the MediaStore content provider for
 	 * the given type.
+	 * @return The set, or null if it has no songs.
 	 */
-	public void chooseSongs(boolean enqueue, int type, long id)
+	public ChosenSongs readChosenSongs(int type, long id)
 	{
-		long[] songs = MediaUtils.getAllSongIdsWith(type, id);
-		if (songs == null || songs.length == 0)
-			return;
+		Cursor cursor = null;
+		int first = 0;
+		long[] songs;
+		boolean shuffle;
+		int generation;
+		synchronized (this) {
+			shuffle = mShuffle;
+			generation = mChooseGeneration;
+		}
+		LibraryIndex index = LibraryIndex.get();
+
+		if (type == MediaUtils.TYPE_SONG) {
+			songs = new long[] { id };
+		} else if (index != null && type != MediaUtils.TYPE_PLAYLIST) {
+			// The whole set can be read from memory, so there is no need to
+			// stream it.
+			songs = index.getSongIds(type, id);
+			if (songs.length == 0)
+				return null;
+
+			if (shuffle) {
+				Random random = ContextApplication.getRandom();
+				for (int i = songs.length; --i != 0; ) {
+					int j = random.nextInt(i + 1);
+					long tmp = songs[j];
+					songs[j] = songs[i];
+					songs[i] = tmp;
+				}
+			}
+		} else {
+			cursor = MediaUtils.getSongIdCursor(type, id);
+			if (cursor == null)
+				return null;
 
-		if (mShuffle) {
-			Random random = ContextApplication.getRandom();
-			for (int i = songs.length; --i != 0; ) {
-				int j = random.nextInt(i + 1);
-				long tmp = songs[j];
-				songs[j] = songs[i];
-				songs[i] = tmp;
+			int count = cursor.getCount();
+			if (shuffle && count != 0)
+				first = ContextApplication.getRandom().nextInt(count);
+			if (!cursor.moveToPosition(first)) {
+				cursor.close();
+				return null;
+			}
+
+			songs = new long[] { cursor.getLong(0) };
+			if (count == 1) {
+				cursor.close();
+				cursor = null;
 			}
 		}
 
+		return new ChosenSongs(songs, cursor, first, shuffle, generation);
+	}
+
+	/**
+	 * Add a set of songs read by readChosenSongs to the song timeline. There
+	 * are two modes: play and enqueue. Play will place the set immediately
+	 * after the current song. (It is assumed that client code will shift the
+	 * current position and play the first song of the set after a call to
+	 * play). Enqueue will place the set after the last enqueued song or after
+	 * the currently playing song if no items have been enqueued since the
+	 * last call to finishEnqueueing.
+	 *
+	 * @param enqueue If true, enqueue the set. If false, play the set.
+	 * @param chosen The set.
+	 */
+	public void addChosenSongs(boolean enqueue, ChosenSongs chosen)
+	{
+		long[] songs = chosen.ids;
 		Song oldSong = getSong(+1);
 
 		ArrayList<Song> timeline = mSongs;
 		synchronized (this) {
+			applyShuffle();
+
 			if (enqueue) {
 				int i = mCurrentPos + mQueueOffset + 1;
 				if (i < timeline.size())
@@ -412,14 +666,139 @@ public final class SongTimeline {
 
 				mQueueOffset += songs.length - 1;
 			}
+
+			mStreamPos = timeline.size();
 		}
 
-		mRepeatedSongs = null;
 		Song newSong = getSong(+1);
 		if (newSong != oldSong && mCallback != null)
 			mCallback.songReplaced(+1, newSong);
 	}
 
+	/**
+	 * Read the remaining songs of a set from readChosenSongs. The songs are
+	 * read from the cursor in batches, so this may take a long time for large
+	 * sets and should not be called on the UI thread. Returns early if
+	 * cancelChoosing is called in the meantime.
+	 *
+	 * Each batch is sent to the given handler, with the batch as an
+	 * ArrayList&lt;Song&gt; in obj and the generation of the set in arg1, to
+	 * be passed to addStreamedSongs on the thread that owns the timeline.
+	 *
+	 * If the set is to be shuffled, the ids are shuffled as they are read
+	 * (using the "inside-out" Fisher-Yates shuffle) and sent once they have
+	 * all been read.
+	 *
+	 * @param chosen The set.
+	 * @param handler The handler to send the batches to.
+	 * @param what The message code to send the batches with.
+	 */
+	public void streamChosenSongs(ChosenSongs chosen, Handler handler, int what)
+	{
+		Cursor cursor = chosen.cursor;
+		if (cursor == null)
+			return;
+
+		int generation = chosen.generation;
+		int skip = chosen.skip;
+
+		try {
+			if (chosen.shuffle) {
+				long[] ids = new long[cursor.getCount() - 1];
+				Random random = ContextApplication.getRandom();
+				int n = 0;
+
+				cursor.moveToPosition(-1);
+				while (n != ids.length && cursor.moveToNext()) {
+					if (cursor.getPosition() == skip)
+						continue;
+
+					int j = random.nextInt(n + 1);
+					ids[n] = ids[j];
+					ids[j] = cursor.getLong(0);
+					++n;
+
+					if (n % STREAM_BATCH_SIZE == 0 && generation != mChooseGeneration)
+						return;
+				}
+
+				for (int i = 0; i < n; i += STREAM_BATCH_SIZE) {
+					if (generation != mChooseGeneration)
+						return;
+					int end = Math.min(n, i + STREAM_BATCH_SIZE);
+					ArrayList<Song> songs = new ArrayList<Song>(end - i);
+					for (int j = i; j != end; ++j)
+						songs.add(new Song(ids[j]));
+					handler.sendMessage(handler.obtainMessage(what, generation, 0, songs));
+				}
+			} else {
+				ArrayList<Song> songs = new ArrayList<Song>(STREAM_BATCH_SIZE);
+
+				cursor.moveToPosition(skip);
+				while (cursor.moveToNext()) {
+					songs.add(new Song(cursor.getLong(0)));
+					if (songs.size() == STREAM_BATCH_SIZE) {
+						if (generation != mChooseGeneration)
+							return;
+						handler.sendMessage(handler.obtainMessage(what, generation, 0, songs));
+						songs = new ArrayList<Song>(STREAM_BATCH_SIZE);
+					}
+				}
+
+				if (!songs.isEmpty())
+					handler.sendMessage(handler.obtainMessage(what, generation, 0, songs));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Add a batch of songs streamed by streamChosenSongs to the timeline.
+	 *
+	 * @param songs The songs to add.
+	 * @param generation The generation of the set the songs belong to.
+	 * @return False if cancelChoosing has been called since the set was read
+	 * and the songs were not added.
+	 */
+	public boolean addStreamedSongs(ArrayList<Song> songs, int generation)
+	{
+		Song oldSong = getSong(+1);
+
+		synchronized (this) {
+			if (generation != mChooseGeneration)
+				return false;
+
+			applyShuffle();
+
+			// If playback has already moved past the set (e.g. onto random
+			// songs), keep the rest of the set next.
+			ArrayList<Song> timeline = mSongs;
+			int pos = Math.max(mCurrentPos + 1, Math.min(mStreamPos, timeline.size()));
+			timeline.addAll(pos, songs);
+			mStreamPos = pos + songs.size();
+			mQueueOffset += songs.size();
+		}
+
+		Song newSong = getSong(+1);
+		if (newSong != oldSong && mCallback != null)
+			mCallback.songReplaced(+1, newSong);
+
+		return true;
+	}
+
+	/**
+	 * Stop adding the songs from the sets read so far. Songs that are still
+	 * being streamed or have yet to be passed to addStreamedSongs are
+	 * dropped.
+	 */
+	public void cancelChoosing()
+	{
+		synchronized (this) {
+			++mChooseGeneration;
+		}
+	}
+
 	/**
 	 * Removes any songs greater than 10 songs before the current song (unless
 	 * they are still necessary for repeating).
@@ -431,6 +810,8 @@ public final class SongTimeline {
 				mSongs.remove(0);
 				--mCurrentPos;
 				--mRepeatStart;
+				if (mStreamPos > 0)
+					--mStreamPos;
 			}
 		}
 	}
@@ -464,16 +845,23 @@ public final class SongTimeline {
 			Song oldCurrent = getSong(0);
 			Song oldNext = getSong(+1);
 
+			applyShuffle();
+
 			while (--i != -1) {
 				if (Song.getId(songs.get(i)) == id) {
 					songs.remove(i);
 					--mCurrentPos;
+					if (i < mStreamPos)
+						--mStreamPos;
 				}
 			}
 
 			for (i = mCurrentPos; i != songs.size(); ++i) {
-				if (Song.getId(songs.get(i)) == id)
+				if (Song.getId(songs.get(i)) == id) {
 					songs.remove(i);
+					if (i < mStreamPos)
+						--mStreamPos;
+				}
 			}
 
 			i = mCurrentPos;
@@ -496,4 +884,82 @@ public final class SongTimeline {
 			return changed;
 		}
 	}
+
+	/**
+	 * Bring the songs in the timeline up to date with the given library
+	 * index. Songs that are no longer in the library are removed and the
+	 * metadata of the others is refreshed. Songs that have not been queried
+	 * yet are left alone; they will be checked when they are queried.
+	 *
+	 * @param index The new library index.
+	 * @return True if the current song was removed or its file changed, in
+	 * which case it must be reloaded.
+	 */
+	public boolean updateSongs(LibraryIndex index)
+	{
+		synchronized (this) {
+			ArrayList<Song> songs = mSongs;
+
+			Song oldPrevious = getSong(-1);
+			Song oldCurrent = getSong(0);
+			Song oldNext = getSong(+1);
+			String oldPath = oldCurrent == null ? null : oldCurrent.path;
+
+			// Check for new metadata before fill() overwrites it.
+			long[] changed = index.getChangedIds();
+			boolean previousChanged = isChanged(oldPrevious, changed, index);
+			boolean currentChanged = isChanged(oldCurrent, changed, index);
+			boolean nextChanged = isChanged(oldNext, changed, index);
+
+			applyShuffle();
+
+			for (int i = songs.size(); --i != -1; ) {
+				Song song = songs.get(i);
+				if (song == null || song.path == null || index.fill(song))
+					continue;
+
+				songs.remove(i);
+				if (i < mCurrentPos)
+					--mCurrentPos;
+				if (i < mRepeatStart)
+					--mRepeatStart;
+				if (i < mStreamPos)
+					--mStreamPos;
+			}
+
+			Song previous = getSong(-1);
+			Song current = getSong(0);
+			Song next = getSong(+1);
+
+			// Songs that are still in place may have new metadata, so
+			// notify for them as well if it changed.
+			if (mCallback != null) {
+				if (previous != oldPrevious || previousChanged)
+					mCallback.songReplaced(-1, previous);
+				if (next != oldNext || nextChanged)
+					mCallback.songReplaced(1, next);
+			}
+
+			if (current != oldCurrent)
+				return true;
+			if (current != null && oldPath != null && !oldPath.equals(current.path))
+				return true;
+			// New metadata with the same path means the file was rewritten
+			// in place (e.g. its tags were edited).
+			return currentChanged;
+		}
+	}
+
+	/**
+	 * Return whether the given song is in the given list of changed ids and
+	 * the index holds different metadata for it.
+	 *
+	 * @param song The song. May be null.
+	 * @param changed The sorted ids. May be null.
+	 * @param index The index the ids come from.
+	 */
+	private static boolean isChanged(Song song, long[] changed, LibraryIndex index)
+	{
+		return song != null && changed != null && Arrays.binarySearch(changed, song.id) >= 0 && index.differs(song);
+	}
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Assigns each distinct string an int code, so that a field that takes the
+ * same value many times (like the artist of a song) can be stored as a code,
+ * or as a reference to one shared String instance, rather than as many equal
+ * copies.
+ *
+ * Codes are never reused or removed, so a code remains valid for the life of
+ * the process. This is safe to use from multiple threads.
+ */
+public final class StringDictionary {
+	/**
+	 * The code of each string in the dictionary.
+	 */
+	private final HashMap<String, Integer> mCodes = new HashMap<String, Integer>();
+	/**
+	 * The strings in the dictionary, indexed by code.
+	 */
+	private final ArrayList<String> mStrings = new ArrayList<String>();
+
+	/**
+	 * Return the code for the given string, adding it to the dictionary if it
+	 * is not present.
+	 *
+	 * @param value The string. May be null.
+	 * @return The code, or -1 if the string is null.
+	 */
+	public synchronized int encode(String value)
+	{
+		if (value == null)
+			return -1;
+
+		Integer code = mCodes.get(value);
+		if (code == null) {
+			code = mStrings.size();
+			mStrings.add(value);
+			mCodes.put(value, code);
+		}
+		return code;
+	}
+
+	/**
+	 * Return the string with the given code.
+	 *
+	 * @param code A code returned by encode, or -1.
+	 * @return The string, or null if the code is -1.
+	 */
+	public synchronized String decode(int code)
+	{
+		if (code == -1)
+			return null;
+		return mStrings.get(code);
+	}
+
+	/**
+	 * Return the number of strings in the dictionary. Codes run from 0 to
+	 * size - 1.
+	 */
+	public synchronized int size()
+	{
+		return mStrings.size();
+	}
+
+	/**
+	 * Return the instance of the given string held by the dictionary, adding
+	 * it if it is not present. Equal strings passed to this method will always
+	 * yield the same instance.
+	 *
+	 * @param value The string. May be null.
+	 */
+	public synchronized String intern(String value)
+	{
+		return decode(encode(value));
+	}
+}
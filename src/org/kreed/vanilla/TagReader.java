@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Reads the title, artist, album and track number from audio files. This
+ * does not depend on Android; it is used by TagScanner to read tags
+ * without going through the system media scanner.
+ *
+ * Supported formats are ID3v2.2-2.4 and ID3v1 tags (MP3 and others), Vorbis
+ * comments in FLAC and Ogg (Vorbis and Opus) files, and iTunes-style
+ * metadata in MP4 files.
+ */
+public final class TagReader {
+	/**
+	 * The largest text frame or comment block that will be read. Larger
+	 * ones are skipped.
+	 */
+	private static final int MAX_FIELD_SIZE = 64 * 1024;
+	/**
+	 * The largest unsynchronised ID3v2.2/2.3 tag that will be read. These
+	 * tags must be read into memory whole.
+	 */
+	private static final int MAX_UNSYNC_TAG_SIZE = 1024 * 1024;
+	/**
+	 * The number of Ogg pages to search for the comment header.
+	 */
+	private static final int MAX_OGG_PAGES = 16;
+
+	/**
+	 * The tags read from a file. Fields that were not found are null, or 0
+	 * for the track.
+	 */
+	public static final class Tags {
+		public String title;
+		public String artist;
+		public String album;
+		public int track;
+
+		/**
+		 * Return true if all the fields have been found.
+		 */
+		public boolean isComplete()
+		{
+			return title != null && artist != null && album != null && track != 0;
+		}
+	}
+
+	/**
+	 * Read the tags from the given file.
+	 *
+	 * @return The tags. Fields that could not be read are left empty.
+	 * @throws IOException If the file could not be read.
+	 */
+	public static Tags read(File file) throws IOException
+	{
+		Tags tags = new Tags();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			long start = readId3v2(in, tags);
+			byte[] magic = new byte[8];
+			in.seek(start);
+			if (in.read(magic) == 8) {
+				if (startsWith(magic, 0, "fLaC")) {
+					readFlac(in, start + 4, tags);
+				} else if (startsWith(magic, 0, "OggS")) {
+					readOgg(in, start, tags);
+				} else if (startsWith(magic, 4, "ftyp")) {
+					readMp4(in, start, in.length(), tags);
+				}
+			}
+			if (!tags.isComplete())
+				readId3v1(in, tags);
+		} finally {
+			in.close();
+		}
+		return tags;
+	}
+
+	/**
+	 * Return true if the given bytes contain the given ASCII string at the
+	 * given offset.
+	 */
+	private static boolean startsWith(byte[] data, int offset, String prefix)
+	{
+		if (data.length - offset < prefix.length())
+			return false;
+		for (int i = prefix.length(); --i != -1; ) {
+			if (data[offset + i] != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decode the given bytes in the given charset.
+	 */
+	private static String decode(byte[] data, int offset, int length, String charset)
+	{
+		try {
+			return new String(data, offset, length, charset);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Return the given string, cut at the first null and trimmed, or null if
+	 * that leaves it empty.
+	 */
+	private static String clean(String value)
+	{
+		int end = value.indexOf('\0');
+		if (end != -1)
+			value = value.substring(0, end);
+		value = value.trim();
+		return value.length() == 0 ? null : value;
+	}
+
+	/**
+	 * Parse a track number such as "3" or "3/12".
+	 *
+	 * @return The track number, or 0 if it could not be parsed.
+	 */
+	private static int parseTrack(String value)
+	{
+		if (value == null)
+			return 0;
+
+		int track = 0;
+		for (int i = 0, n = value.length(); i != n; ++i) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9' || track > 100000)
+				break;
+			track = track * 10 + c - '0';
+		}
+		return track;
+	}
+
+	/**
+	 * Set the field of the given tags with the given name, if not already
+	 * set. Names are Vorbis comment field names.
+	 */
+	private static void setField(Tags tags, String name, String value)
+	{
+		value = clean(value);
+		if (value == null)
+			return;
+
+		if (tags.title == null && "TITLE".equalsIgnoreCase(name))
+			tags.title = value;
+		else if (tags.artist == null && "ARTIST".equalsIgnoreCase(name))
+			tags.artist = value;
+		else if (tags.album == null && "ALBUM".equalsIgnoreCase(name))
+			tags.album = value;
+		else if (tags.track == 0 && "TRACKNUMBER".equalsIgnoreCase(name))
+			tags.track = parseTrack(value);
+	}
+
+	/**
+	 * Read a syncsafe integer (7 bits per byte) from the given bytes.
+	 */
+	private static int readSyncsafe(byte[] data, int offset)
+	{
+		return (data[offset] & 0x7f) << 21 | (data[offset + 1] & 0x7f) << 14 | (data[offset + 2] & 0x7f) << 7 | data[offset + 3] & 0x7f;
+	}
+
+	/**
+	 * Read a big-endian integer from the given bytes.
+	 */
+	private static int readInt(byte[] data, int offset)
+	{
+		return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+	}
+
+	/**
+	 * Read a little-endian integer from the given bytes.
+	 */
+	private static int readIntLE(byte[] data, int offset)
+	{
+		return (data[offset + 3] & 0xff) << 24 | (data[offset + 2] & 0xff) << 16 | (data[offset + 1] & 0xff) << 8 | data[offset] & 0xff;
+	}
+
+	/**
+	 * Undo ID3v2 unsynchronisation: remove each zero byte that follows an
+	 * 0xff byte.
+	 */
+	private static byte[] unsynchronise(byte[] data, int offset, int length)
+	{
+		byte[] result = new byte[length];
+		int n = 0;
+		for (int i = 0; i != length; ++i) {
+			byte b = data[offset + i];
+			if (b == 0 && i != 0 && data[offset + i - 1] == (byte)0xff)
+				continue;
+			result[n++] = b;
+		}
+		byte[] trimmed = new byte[n];
+		System.arraycopy(result, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+	/**
+	 * Skip the given number of bytes of the given input.
+	 */
+	private static void skip(DataInput in, int count) throws IOException
+	{
+		while (count > 0) {
+			int skipped = in.skipBytes(count);
+			if (skipped <= 0)
+				throw new IOException("Unexpected end of tag");
+			count -= skipped;
+		}
+	}
+
+	/**
+	 * Read the ID3v2 tag at the start of the file, if there is one.
+	 *
+	 * @return The offset of the data following the tag, or 0 if there is no
+	 * tag.
+	 */
+	private static long readId3v2(RandomAccessFile in, Tags tags) throws IOException
+	{
+		byte[] header = new byte[10];
+		in.seek(0);
+		if (in.read(header) != 10 || !startsWith(header, 0, "ID3"))
+			return 0;
+
+		int version = header[3];
+		int flags = header[5];
+		int size = readSyncsafe(header, 6);
+		long end = 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+		if (version < 2 || version > 4)
+			return end;
+
+		DataInput data = in;
+		if ((flags & 0x80) != 0 && version != 4) {
+			// The whole tag is unsynchronised; undo that in memory.
+			if (size > MAX_UNSYNC_TAG_SIZE)
+				return end;
+			byte[] raw = new byte[size];
+			in.readFully(raw);
+			raw = unsynchronise(raw, 0, size);
+			data = new DataInputStream(new ByteArrayInputStream(raw));
+			size = raw.length;
+		}
+
+		try {
+			if (version != 2 && (flags & 0x40) != 0) {
+				// Skip the extended header
+				byte[] extended = new byte[4];
+				data.readFully(extended);
+				int extendedSize = version == 4 ? readSyncsafe(extended, 0) - 4 : readInt(extended, 0);
+				skip(data, extendedSize);
+				size -= 4 + extendedSize;
+			}
+			readId3v2Frames(data, size, version, tags);
+		} catch (IOException e) {
+			// Use what was read before the tag ended
+		}
+
+		return end;
+	}
+
+	/**
+	 * Read the frames of an ID3v2 tag.
+	 *
+	 * @param in The input, positioned at the first frame.
+	 * @param size The number of bytes of frames.
+	 * @param version The major version of the tag: 2, 3 or 4.
+	 */
+	private static void readId3v2Frames(DataInput in, int size, int version, Tags tags) throws IOException
+	{
+		int headerSize = version == 2 ? 6 : 10;
+		byte[] header = new byte[headerSize];
+		int pos = 0;
+
+		while (pos + headerSize <= size && !tags.isComplete()) {
+			in.readFully(header);
+			pos += headerSize;
+			if (header[0] == 0)
+				break; // Padding
+
+			String id;
+			int frameSize;
+			int flags = 0;
+			if (version == 2) {
+				id = decode(header, 0, 3, "ISO-8859-1");
+				frameSize = (header[3] & 0xff) << 16 | (header[4] & 0xff) << 8 | header[5] & 0xff;
+			} else {
+				id = decode(header, 0, 4, "ISO-8859-1");
+				frameSize = version == 4 ? readSyncsafe(header, 4) : readInt(header, 4);
+				flags = (header[8] & 0xff) << 8 | header[9] & 0xff;
+			}
+			if (frameSize < 0 || pos + frameSize > size)
+				break;
+			pos += frameSize;
+
+			String field = null;
+			if ("TIT2".equals(id) || "TT2".equals(id))
+				field = "TITLE";
+			else if ("TPE1".equals(id) || "TP1".equals(id))
+				field = "ARTIST";
+			else if ("TALB".equals(id) || "TAL".equals(id))
+				field = "ALBUM";
+			else if ("TRCK".equals(id) || "TRK".equals(id))
+				field = "TRACKNUMBER";
+
+			// Compressed or encrypted frames are not supported.
+			int unsupported = version == 4 ? 0x000c : 0x00c0;
+			if (field == null || frameSize > MAX_FIELD_SIZE || (flags & unsupported) != 0) {
+				skip(in, frameSize);
+				continue;
+			}
+
+			byte[] data = new byte[frameSize];
+			in.readFully(data);
+			int offset = 0;
+			int length = frameSize;
+			if (version == 4) {
+				if ((flags & 0x0001) != 0) {
+					// Data length indicator
+					offset += 4;
+					length -= 4;
+				}
+				if ((flags & 0x0002) != 0 && length > 0) {
+					data = unsynchronise(data, offset, length);
+					offset = 0;
+					length = data.length;
+				}
+			}
+
+			if (length > 1)
+				setField(tags, field, decodeId3Text(data, offset, length));
+		}
+	}
+
+	/**
+	 * Decode the contents of an ID3v2 text frame: an encoding byte followed
+	 * by the text.
+	 */
+	private static String decodeId3Text(byte[] data, int offset, int length)
+	{
+		String charset;
+		switch (data[offset]) {
+		case 1:
+			charset = "UTF-16";
+			break;
+		case 2:
+			charset = "UTF-16BE";
+			break;
+		case 3:
+			charset = "UTF-8";
+			break;
+		default:
+			charset = "ISO-8859-1";
+			break;
+		}
+		return decode(data, offset + 1, length - 1, charset);
+	}
+
+	/**
+	 * Read the ID3v1 tag at the end of the file, if there is one. Only
+	 * fields not already found are set.
+	 */
+	private static void readId3v1(RandomAccessFile in, Tags tags) throws IOException
+	{
+		long length = in.length();
+		if (length < 128)
+			return;
+
+		byte[] tag = new byte[128];
+		in.seek(length - 128);
+		in.readFully(tag);
+		if (!startsWith(tag, 0, "TAG"))
+			return;
+
+		setField(tags, "TITLE", decode(tag, 3, 30, "ISO-8859-1"));
+		setField(tags, "ARTIST", decode(tag, 33, 30, "ISO-8859-1"));
+		setField(tags, "ALBUM", decode(tag, 63, 30, "ISO-8859-1"));
+		// ID3v1.1 stores the track in the last byte of the comment
+		if (tags.track == 0 && tag[125] == 0 && tag[126] != 0)
+			tags.track = tag[126] & 0xff;
+	}
+
+	/**
+	 * Parse a Vorbis comment block (without the framing bit).
+	 */
+	private static void readVorbisComment(byte[] data, int offset, int end, Tags tags)
+	{
+		if (end - offset < 8)
+			return;
+
+		int vendorLength = readIntLE(data, offset);
+		if (vendorLength < 0 || vendorLength > end - offset - 8)
+			return;
+		offset += 4 + vendorLength;
+
+		int count = readIntLE(data, offset);
+		offset += 4;
+		while (--count >= 0 && end - offset >= 4) {
+			int length = readIntLE(data, offset);
+			offset += 4;
+			if (length < 0 || length > end - offset)
+				return;
+
+			String comment = decode(data, offset, length, "UTF-8");
+			offset += length;
+			int equals = comment.indexOf('=');
+			if (equals != -1)
+				setField(tags, comment.substring(0, equals), comment.substring(equals + 1));
+		}
+	}
+
+	/**
+	 * Read the Vorbis comment from the metadata blocks of a FLAC file.
+	 *
+	 * @param offset The offset of the first metadata block.
+	 */
+	private static void readFlac(RandomAccessFile in, long offset, Tags tags) throws IOException
+	{
+		byte[] header = new byte[4];
+		while (true) {
+			in.seek(offset);
+			if (in.read(header) != 4)
+				return;
+
+			boolean last = (header[0] & 0x80) != 0;
+			int type = header[0] & 0x7f;
+			int length = (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | header[3] & 0xff;
+			if (type == 4) {
+				if (length > MAX_FIELD_SIZE)
+					return;
+				byte[] block = new byte[length];
+				in.readFully(block);
+				readVorbisComment(block, 0, length, tags);
+				return;
+			}
+
+			if (last)
+				return;
+			offset += 4 + length;
+		}
+	}
+
+	/**
+	 * Read the comment header of an Ogg Vorbis or Opus file. This is the
+	 * second packet of the stream, which may span several pages.
+	 *
+	 * @param offset The offset of the first page.
+	 */
+	private static void readOgg(RandomAccessFile in, long offset, Tags tags) throws IOException
+	{
+		byte[] header = new byte[27];
+		byte[] segments = new byte[255];
+		byte[] packet = new byte[0];
+		int packetLength = 0;
+		int packetIndex = 0;
+
+		for (int page = 0; page != MAX_OGG_PAGES; ++page) {
+			in.seek(offset);
+			if (in.read(header) != 27 || !startsWith(header, 0, "OggS"))
+				return;
+			int segmentCount = header[26] & 0xff;
+			in.readFully(segments, 0, segmentCount);
+			offset += 27 + segmentCount;
+
+			for (int i = 0; i != segmentCount; ++i) {
+				int length = segments[i] & 0xff;
+				if (packetIndex == 1) {
+					if (packetLength + length > MAX_FIELD_SIZE)
+						return;
+					if (packetLength + length > packet.length) {
+						byte[] grown = new byte[Math.max(packet.length * 2, packetLength + length)];
+						System.arraycopy(packet, 0, grown, 0, packetLength);
+						packet = grown;
+					}
+					in.seek(offset);
+					in.readFully(packet, packetLength, length);
+					packetLength += length;
+				}
+				offset += length;
+
+				if (length < 255) {
+					// End of packet
+					if (packetIndex == 1) {
+						if (packetLength >= 7 && packet[0] == 3 && startsWith(packet, 1, "vorbis"))
+							readVorbisComment(packet, 7, packetLength, tags);
+						else if (packetLength >= 8 && startsWith(packet, 0, "OpusTags"))
+							readVorbisComment(packet, 8, packetLength, tags);
+						return;
+					}
+					++packetIndex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read iTunes-style metadata from the boxes of an MP4 file in the given
+	 * range, descending into moov/udta/meta/ilst.
+	 */
+	private static void readMp4(RandomAccessFile in, long start, long end, Tags tags) throws IOException
+	{
+		byte[] header = new byte[8];
+		long offset = start;
+		while (offset + 8 <= end) {
+			in.seek(offset);
+			in.readFully(header);
+			long size = readInt(header, 0) & 0xffffffffL;
+			int headerSize = 8;
+			if (size == 1) {
+				size = in.readLong();
+				headerSize = 16;
+			} else if (size == 0) {
+				size = end - offset;
+			}
+			if (size < headerSize || offset + size > end)
+				return;
+
+			String type = decode(header, 4, 4, "ISO-8859-1");
+			long contentStart = offset + headerSize;
+			long contentEnd = offset + size;
+
+			if ("moov".equals(type) || "udta".equals(type)) {
+				readMp4(in, contentStart, contentEnd, tags);
+			} else if ("meta".equals(type)) {
+				// meta is a full box: skip the version and flags
+				readMp4(in, contentStart + 4, contentEnd, tags);
+			} else if ("ilst".equals(type)) {
+				readMp4Items(in, contentStart, contentEnd, tags);
+				return;
+			}
+
+			offset = contentEnd;
+		}
+	}
+
+	/**
+	 * Read the items of an MP4 ilst box.
+	 */
+	private static void readMp4Items(RandomAccessFile in, long offset, long end, Tags tags) throws IOException
+	{
+		byte[] header = new byte[8];
+		while (offset + 8 <= end) {
+			in.seek(offset);
+			in.readFully(header);
+			int size = readInt(header, 0);
+			if (size < 8 || offset + size > end)
+				return;
+
+			String field = null;
+			if (header[4] == (byte)0xa9) {
+				String name = decode(header, 5, 3, "ISO-8859-1");
+				if ("nam".equals(name))
+					field = "TITLE";
+				else if ("ART".equals(name))
+					field = "ARTIST";
+				else if ("alb".equals(name))
+					field = "ALBUM";
+			} else if (startsWith(header, 4, "trkn")) {
+				field = "TRACKNUMBER";
+			}
+
+			// The item contains a data box: size, "data", type, locale, value
+			if (field != null && size >= 24 && size - 8 <= MAX_FIELD_SIZE) {
+				byte[] item = new byte[size - 8];
+				in.readFully(item);
+				if (startsWith(item, 4, "data")) {
+					int dataEnd = Math.min(readInt(item, 0), item.length);
+					if ("TRACKNUMBER".equals(field)) {
+						if (dataEnd >= 20 && tags.track == 0)
+							tags.track = (item[18] & 0xff) << 8 | item[19] & 0xff;
+					} else if (dataEnd > 16) {
+						setField(tags, field, decode(item, 16, dataEnd - 16, "UTF-8"));
+					}
+				}
+			}
+
+			offset += size;
+		}
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the tags of the audio files in a set of directories with TagReader
+ * and remembers them by path.
+ *
+ * Directories are walked on a pool of threads: each directory is a task
+ * that reads the files in it and submits a task for each subdirectory.
+ * The size and modification time of each file is remembered along with its
+ * tags, and files that have not changed are not read again. The results
+ * can be saved to a cache file between runs.
+ *
+ * Files are remembered by their path under the canonical path of their
+ * directory, so a directory reachable through a symlink or a second mount
+ * point is only scanned and stored once. getTags accepts any path to the
+ * file.
+ *
+ * This does not depend on Android; LibraryScanner ties it to the
+ * application.
+ */
+public final class TagScanner {
+	/**
+	 * Header of the cache file to help indicate if it is in the right format.
+	 */
+	private static final long CACHE_MAGIC = 0x5e7c0a1d4b3aL;
+	/**
+	 * The extensions of the files that will be read.
+	 */
+	private static final String[] EXTENSIONS = { ".mp3", ".flac", ".ogg", ".oga", ".opus", ".m4a", ".mp4", ".aac" };
+
+	/**
+	 * The size, modification time and tags of a scanned file.
+	 */
+	private static final class Entry {
+		public long size;
+		public long modified;
+		public TagReader.Tags tags;
+	}
+
+	/**
+	 * The file the entries are saved to.
+	 */
+	private final File mCacheFile;
+	/**
+	 * The scanned files, keyed by path under the canonical path of their
+	 * directory.
+	 */
+	private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+	/**
+	 * The canonical paths of the directories looked up by getTags, keyed by
+	 * the path they were looked up with. Cleared on each scan, since mounts
+	 * may have changed.
+	 */
+	private final HashMap<String, String> mCanonicalDirectories = new HashMap<String, String>();
+
+	/**
+	 * Create a scanner.
+	 *
+	 * @param cacheFile The file to save the results to.
+	 */
+	public TagScanner(File cacheFile)
+	{
+		mCacheFile = cacheFile;
+	}
+
+	/**
+	 * Return the tags read from the file with the given path.
+	 *
+	 * @param path The path of the file, through any symlinks or mount
+	 * points.
+	 * @return The tags, or null if the file has not been scanned.
+	 */
+	public TagReader.Tags getTags(String path)
+	{
+		File file = new File(path);
+		String parent = file.getParent();
+		if (parent == null)
+			return null;
+
+		String directory;
+		synchronized (this) {
+			directory = mCanonicalDirectories.get(parent);
+		}
+		if (directory == null) {
+			try {
+				directory = new File(parent).getCanonicalPath();
+			} catch (IOException e) {
+				return null;
+			}
+			synchronized (this) {
+				mCanonicalDirectories.put(parent, directory);
+			}
+		}
+
+		synchronized (this) {
+			Entry entry = mEntries.get(new File(directory, file.getName()).getPath());
+			return entry == null ? null : entry.tags;
+		}
+	}
+
+	/**
+	 * Return true if the given file name has one of EXTENSIONS.
+	 */
+	private static boolean isAudioFile(String name)
+	{
+		String lower = name.toLowerCase();
+		for (int i = EXTENSIONS.length; --i != -1; ) {
+			if (lower.endsWith(EXTENSIONS[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The state of one run of scan.
+	 */
+	private final class Walk {
+		public final ExecutorService executor;
+		/**
+		 * The paths of the audio files found so far, under the canonical
+		 * paths of their directories.
+		 */
+		public final HashSet<String> seen = new HashSet<String>();
+		/**
+		 * The canonical paths of the directories visited so far, so that
+		 * each directory is scanned once however it is reached, and
+		 * symlink loops are not followed.
+		 */
+		public final HashSet<String> visited = new HashSet<String>();
+		/**
+		 * The canonical paths of the directories whose files were listed.
+		 */
+		public final HashSet<String> listed = new HashSet<String>();
+		/**
+		 * The canonical paths of the directories that could not be listed,
+		 * such as an unmounted card.
+		 */
+		public final HashSet<String> failed = new HashSet<String>();
+		/**
+		 * The number of directory tasks submitted but not finished.
+		 */
+		public final AtomicInteger pending = new AtomicInteger();
+		/**
+		 * The number of files added or changed.
+		 */
+		public final AtomicInteger changes = new AtomicInteger();
+
+		public Walk(int threads)
+		{
+			executor = Executors.newFixedThreadPool(threads);
+		}
+
+		/**
+		 * Submit a task to scan the given directory.
+		 */
+		public void submit(File path)
+		{
+			final File directory;
+			try {
+				directory = path.getCanonicalFile();
+			} catch (IOException e) {
+				return;
+			}
+			synchronized (visited) {
+				if (!visited.add(directory.getPath()))
+					return;
+			}
+
+			pending.incrementAndGet();
+			executor.execute(new Runnable() {
+				public void run()
+				{
+					try {
+						scanDirectory(directory);
+					} finally {
+						if (pending.decrementAndGet() == 0) {
+							synchronized (Walk.this) {
+								Walk.this.notifyAll();
+							}
+						}
+					}
+				}
+			});
+		}
+
+		/**
+		 * Read the changed files in the given directory and submit its
+		 * subdirectories.
+		 *
+		 * @param directory The directory, by its canonical path.
+		 */
+		private void scanDirectory(File directory)
+		{
+			File[] files = directory.listFiles();
+			if (files == null) {
+				synchronized (failed) {
+					failed.add(directory.getPath());
+				}
+				return;
+			}
+
+			synchronized (listed) {
+				listed.add(directory.getPath());
+			}
+
+			for (int i = 0; i != files.length; ++i) {
+				File file = files[i];
+				if (file.isDirectory()) {
+					submit(file);
+				} else if (isAudioFile(file.getName())) {
+					String path = file.getPath();
+					synchronized (seen) {
+						seen.add(path);
+					}
+					if (scanFile(path, file))
+						changes.incrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Return true if the nearest directory above the given file that
+		 * this walk tried to list was listed. A file that was not seen is
+		 * only known to be gone if so; otherwise it may just be on a card
+		 * that is not mounted.
+		 */
+		public boolean wasListed(String path)
+		{
+			for (File directory = new File(path).getParentFile(); directory != null; directory = directory.getParentFile()) {
+				String name = directory.getPath();
+				if (listed.contains(name))
+					return true;
+				if (failed.contains(name))
+					return false;
+			}
+			return false;
+		}
+
+		/**
+		 * Wait until all the submitted directories have been scanned.
+		 */
+		public synchronized void await() throws InterruptedException
+		{
+			while (pending.get() != 0)
+				wait();
+		}
+	}
+
+	/**
+	 * Read the tags of the given file if it is new or its size or
+	 * modification time has changed.
+	 *
+	 * @return True if the file was read.
+	 */
+	private boolean scanFile(String path, File file)
+	{
+		long size = file.length();
+		long modified = file.lastModified();
+
+		synchronized (this) {
+			Entry entry = mEntries.get(path);
+			if (entry != null && entry.size == size && entry.modified == modified)
+				return false;
+		}
+
+		Entry entry = new Entry();
+		entry.size = size;
+		entry.modified = modified;
+		try {
+			entry.tags = TagReader.read(file);
+		} catch (IOException e) {
+			// Remember the file anyway so it is not read again until it
+			// changes.
+		}
+
+		synchronized (this) {
+			mEntries.put(path, entry);
+		}
+		return true;
+	}
+
+	/**
+	 * Scan the given directories, reading the tags of new and changed files
+	 * and forgetting files that no longer exist. Files under directories
+	 * that cannot be listed are kept. Blocks until done.
+	 *
+	 * @param directories The directories to scan.
+	 * @param threads The number of threads to scan with.
+	 * @return The number of files added, changed or removed.
+	 */
+	public int scan(File[] directories, int threads) throws InterruptedException
+	{
+		synchronized (this) {
+			mCanonicalDirectories.clear();
+		}
+
+		Walk walk = new Walk(threads);
+		try {
+			for (int i = 0; i != directories.length; ++i)
+				walk.submit(directories[i]);
+			walk.await();
+		} finally {
+			walk.executor.shutdownNow();
+		}
+
+		int changes = walk.changes.get();
+		synchronized (this) {
+			Iterator<String> paths = mEntries.keySet().iterator();
+			while (paths.hasNext()) {
+				String path = paths.next();
+				if (!walk.seen.contains(path) && walk.wasListed(path)) {
+					paths.remove();
+					++changes;
+				}
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Write a string that may be null.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	/**
+	 * Read a string written by writeString.
+	 */
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Load the entries saved by saveCache, if any.
+	 */
+	public void loadCache()
+	{
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mCacheFile)));
+			try {
+				if (in.readLong() != CACHE_MAGIC)
+					return;
+
+				HashMap<String, Entry> entries = new HashMap<String, Entry>();
+				for (int i = in.readInt(); --i != -1; ) {
+					String path = in.readUTF();
+					Entry entry = new Entry();
+					entry.size = in.readLong();
+					entry.modified = in.readLong();
+					if (in.readBoolean()) {
+						TagReader.Tags tags = new TagReader.Tags();
+						tags.title = readString(in);
+						tags.artist = readString(in);
+						tags.album = readString(in);
+						tags.track = in.readInt();
+						entry.tags = tags;
+					}
+					entries.put(path, entry);
+				}
+
+				synchronized (this) {
+					mEntries.putAll(entries);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// The cache does not exist yet or is damaged; scan everything.
+		}
+	}
+
+	/**
+	 * Save the entries to the cache file.
+	 */
+	public synchronized void saveCache() throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mCacheFile)));
+		try {
+			out.writeLong(CACHE_MAGIC);
+			out.writeInt(mEntries.size());
+			for (String path : mEntries.keySet()) {
+				Entry entry = mEntries.get(path);
+				out.writeUTF(path);
+				out.writeLong(entry.size);
+				out.writeLong(entry.modified);
+				out.writeBoolean(entry.tags != null);
+				if (entry.tags != null) {
+					writeString(out, entry.tags.title);
+					writeString(out, entry.tags.artist);
+					writeString(out, entry.tags.album);
+					out.writeInt(entry.tags.track);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
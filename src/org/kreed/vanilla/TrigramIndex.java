@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Maps each sequence of three bytes (trigram) to the documents that contain
+ * it, so the documents that may contain a given string can be found without
+ * examining every document. A document contains a string only if it
+ * contains every trigram of the string, so the candidates are the
+ * intersection of the documents of each trigram. The candidates must still
+ * be checked, since the trigrams may occur in a different order.
+ *
+ * Documents are numbered from 0 and must be added in increasing order. The
+ * documents of each trigram are stored as the differences between
+ * successive documents, encoded as variable-length integers, which usually
+ * takes one byte per document.
+ */
+final class TrigramIndex {
+	/**
+	 * The documents containing one trigram.
+	 */
+	private static final class Postings {
+		/**
+		 * The differences between successive documents, as variable-length
+		 * integers (7 bits per byte, high bit set on all but the last byte).
+		 */
+		public byte[] data = new byte[4];
+		/**
+		 * The number of bytes used in data.
+		 */
+		public int length;
+		/**
+		 * The last document added.
+		 */
+		public int last = -1;
+		/**
+		 * The number of documents.
+		 */
+		public int count;
+
+		/**
+		 * Add a document. Adding the last document again does nothing.
+		 */
+		public void add(int document)
+		{
+			if (document == last)
+				return;
+
+			int delta = document - last;
+			last = document;
+			++count;
+
+			if (length + 5 > data.length) {
+				byte[] grown = new byte[data.length * 2];
+				System.arraycopy(data, 0, grown, 0, length);
+				data = grown;
+			}
+
+			while (delta >= 0x80) {
+				data[length++] = (byte)(delta | 0x80);
+				delta >>>= 7;
+			}
+			data[length++] = (byte)delta;
+		}
+
+		/**
+		 * Return the documents.
+		 */
+		public int[] decode()
+		{
+			int[] documents = new int[count];
+			byte[] data = this.data;
+			int document = -1;
+			for (int i = 0, j = 0; j != count; ++j) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[i++];
+					delta |= (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				document += delta;
+				documents[j] = document;
+			}
+			return documents;
+		}
+	}
+
+	/**
+	 * The postings of each trigram, keyed by the three bytes packed into an
+	 * int.
+	 */
+	private final HashMap<Integer, Postings> mPostings = new HashMap<Integer, Postings>();
+
+	/**
+	 * Pack three bytes into an int.
+	 */
+	private static int trigram(int a, int b, int c)
+	{
+		return (a & 0xff) << 16 | (b & 0xff) << 8 | c & 0xff;
+	}
+
+	/**
+	 * Add the trigrams of the given bytes to the given document.
+	 *
+	 * @param document The document. Must not be less than any document
+	 * added before.
+	 * @param bytes The buffer holding the text of the document.
+	 * @param start The offset of the text in the buffer.
+	 * @param end The offset of the end of the text in the buffer.
+	 */
+	public void add(int document, ByteBuffer bytes, int start, int end)
+	{
+		HashMap<Integer, Postings> postings = mPostings;
+		for (int i = start; i + 3 <= end; ++i) {
+			Integer key = trigram(bytes.get(i), bytes.get(i + 1), bytes.get(i + 2));
+			Postings list = postings.get(key);
+			if (list == null) {
+				list = new Postings();
+				postings.put(key, list);
+			}
+			list.add(document);
+		}
+	}
+
+	/**
+	 * Return the documents that may contain the given bytes.
+	 *
+	 * @return The documents, in increasing order, or null if the needle is
+	 * too short to narrow down the documents (every document is a
+	 * candidate).
+	 */
+	public int[] find(byte[] needle)
+	{
+		if (needle.length < 3)
+			return null;
+
+		// Start with the rarest trigram so the intersection stays small.
+		int count = needle.length - 2;
+		Postings[] lists = new Postings[count];
+		Postings rarest = null;
+		for (int i = 0; i != count; ++i) {
+			Postings list = mPostings.get(trigram(needle[i], needle[i + 1], needle[i + 2]));
+			if (list == null)
+				return new int[0];
+			lists[i] = list;
+			if (rarest == null || list.count < rarest.count)
+				rarest = list;
+		}
+
+		int[] result = rarest.decode();
+		int size = result.length;
+		for (int i = 0; i != count && size != 0; ++i) {
+			if (lists[i] != rarest)
+				size = intersect(result, size, lists[i]);
+		}
+
+		int[] trimmed = new int[size];
+		System.arraycopy(result, 0, trimmed, 0, size);
+		return trimmed;
+	}
+
+	/**
+	 * Remove the documents from the given array that are not in the given
+	 * postings.
+	 *
+	 * @param documents The documents, in increasing order. Modified in
+	 * place.
+	 * @param size The number of documents in the array.
+	 * @return The number of documents left.
+	 */
+	private static int intersect(int[] documents, int size, Postings list)
+	{
+		byte[] data = list.data;
+		int document = -1;
+		int read = 0;
+		int pos = 0;
+		int kept = 0;
+
+		for (int i = 0; i != size; ++i) {
+			int target = documents[i];
+			while (document < target && read != list.count) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[pos++];
+					delta |= (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				document += delta;
+				++read;
+			}
+			if (document == target)
+				documents[kept++] = target;
+			else if (document < target)
+				break;
+		}
+
+		return kept;
+	}
+}
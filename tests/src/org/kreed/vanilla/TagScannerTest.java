@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 Christopher Eby <kreed@kreed.org>
+ *
+ * This file is part of Vanilla Music Player.
+ *
+ * Vanilla Music Player is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Library General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Vanilla Music Player is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kreed.vanilla;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests TagScanner against a directory tree of generated files with ID3v1
+ * tags. TagScanner and TagReader do not depend on Android, so this runs on
+ * a plain JVM.
+ */
+public class TagScannerTest extends TestCase {
+	private File mRoot;
+	private TagScanner mScanner;
+
+	@Override
+	protected void setUp() throws IOException
+	{
+		mRoot = File.createTempFile("TagScannerTest", "");
+		mRoot.delete();
+		mRoot.mkdir();
+		mScanner = new TagScanner(new File(mRoot, "cache"));
+	}
+
+	@Override
+	protected void tearDown()
+	{
+		delete(mRoot);
+	}
+
+	/**
+	 * Delete the given file or directory and everything in it.
+	 */
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (int i = 0; i != files.length; ++i)
+				delete(files[i]);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Write a file holding some padding and an ID3v1.1 tag with the given
+	 * fields.
+	 */
+	private static File writeSong(File directory, String name, String title, String artist, String album, int track) throws IOException
+	{
+		directory.mkdirs();
+		byte[] data = new byte[256 + 128];
+		byte[] tag = new byte[128];
+		tag[0] = 'T';
+		tag[1] = 'A';
+		tag[2] = 'G';
+		putField(tag, 3, title);
+		putField(tag, 33, artist);
+		putField(tag, 63, album);
+		tag[126] = (byte)track;
+		System.arraycopy(tag, 0, data, 256, 128);
+
+		File file = new File(directory, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void putField(byte[] tag, int offset, String value)
+	{
+		byte[] bytes = value.getBytes();
+		System.arraycopy(bytes, 0, tag, offset, Math.min(bytes.length, 30));
+	}
+
+	private int scan(File... directories) throws InterruptedException
+	{
+		return mScanner.scan(directories, 2);
+	}
+
+	public void testAdd() throws Exception
+	{
+		File a = writeSong(new File(mRoot, "music"), "a.mp3", "Song A", "Artist", "Album", 1);
+		File b = writeSong(new File(mRoot, "music/sub"), "b.mp3", "Song B", "Artist", "Album", 2);
+		new File(mRoot, "music/notes.txt").createNewFile();
+
+		assertEquals(2, scan(new File(mRoot, "music")));
+
+		TagReader.Tags tags = mScanner.getTags(a.getPath());
+		assertNotNull(tags);
+		assertEquals("Song A", tags.title);
+		assertEquals("Artist", tags.artist);
+		assertEquals("Album", tags.album);
+		assertEquals(1, tags.track);
+		assertEquals("Song B", mScanner.getTags(b.getPath()).title);
+		assertNull(mScanner.getTags(new File(mRoot, "music/notes.txt").getPath()));
+	}
+
+	public void testSkipUnchanged() throws Exception
+	{
+		File music = new File(mRoot, "music");
+		File a = writeSong(music, "a.mp3", "Song A", "Artist", "Album", 1);
+		writeSong(music, "b.mp3", "Song B", "Artist", "Album", 2);
+		assertEquals(2, scan(music));
+		assertEquals(0, scan(music));
+
+		writeSong(music, "a.mp3", "Song A2", "Artist", "Album", 1);
+		a.setLastModified(a.lastModified() - 10000);
+		assertEquals(1, scan(music));
+		assertEquals("Song A2", mScanner.getTags(a.getPath()).title);
+	}
+
+	public void testCache() throws Exception
+	{
+		File music = new File(mRoot, "music");
+		File a = writeSong(music, "a.mp3", "Song A", "Artist", "Album", 1);
+		assertEquals(1, scan(music));
+		mScanner.saveCache();
+
+		mScanner = new TagScanner(new File(mRoot, "cache"));
+		mScanner.loadCache();
+		assertEquals("Song A", mScanner.getTags(a.getPath()).title);
+		assertEquals(0, scan(music));
+	}
+
+	public void testDelete() throws Exception
+	{
+		File music = new File(mRoot, "music");
+		File a = writeSong(music, "a.mp3", "Song A", "Artist", "Album", 1);
+		File b = writeSong(new File(music, "sub"), "b.mp3", "Song B", "Artist", "Album", 2);
+		assertEquals(2, scan(music));
+
+		assertTrue(a.delete());
+		delete(new File(music, "sub"));
+		assertEquals(2, scan(music));
+		assertNull(mScanner.getTags(a.getPath()));
+		assertNull(mScanner.getTags(b.getPath()));
+	}
+
+	public void testUnlistedDirectoryKept() throws Exception
+	{
+		File card = new File(mRoot, "card");
+		File a = writeSong(card, "a.mp3", "Song A", "Artist", "Album", 1);
+		File music = new File(mRoot, "music");
+		writeSong(music, "b.mp3", "Song B", "Artist", "Album", 2);
+		assertEquals(2, scan(music, card));
+
+		// Unmount the card.
+		assertTrue(card.renameTo(new File(mRoot, "away")));
+		assertEquals(0, scan(music, card));
+		assertTrue(new File(mRoot, "away").renameTo(card));
+		assertEquals("Song A", mScanner.getTags(a.getPath()).title);
+	}
+
+	public void testSymlinkedDirectory() throws Exception
+	{
+		File music = new File(mRoot, "music");
+		File a = writeSong(new File(music, "real"), "a.mp3", "Song A", "Artist", "Album", 1);
+		File link = new File(music, "link");
+		Process ln = Runtime.getRuntime().exec(new String[] { "ln", "-s", "real", link.getPath() });
+		if (ln.waitFor() != 0)
+			return;
+
+		assertEquals(1, scan(music));
+		for (int i = 0; i != 5; ++i)
+			assertEquals(0, scan(music));
+		assertEquals("Song A", mScanner.getTags(a.getPath()).title);
+		assertEquals("Song A", mScanner.getTags(new File(link, "a.mp3").getPath()).title);
+	}
+}